@@ -74,7 +74,7 @@ public class Main {
                     break;
 
                 case "gc":
-                    new GCCommand().run();
+                    handleGc(args);
                     break;
 
                 case "stash":
@@ -196,6 +196,16 @@ public class Main {
         new RevertCommand().run(args[1]);
     }
 
+    private static void handleGc(String[] args) {
+        if (args.length == 1) {
+            new GCCommand().run();
+        } else if (args.length == 2 && args[1].equals("--incremental")) {
+            new GCCommand().runIncremental();
+        } else {
+            System.out.println("Usage: mygit gc [--incremental]");
+        }
+    }
+
     private static void handleConfig(String[] args) {
         if (args.length != 3) {
             System.out.println("Usage: mygit config user.name|user.email <value>");
@@ -231,6 +241,6 @@ public class Main {
         System.out.println("  mygit revert <commit>");
         System.out.println("  mygit config user.name|user.email <value>");
         System.out.println("  mygit stash [apply|pop]");
-        System.out.println("  mygit gc");
+        System.out.println("  mygit gc [--incremental]");
     }
 }
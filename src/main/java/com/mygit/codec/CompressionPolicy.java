@@ -0,0 +1,114 @@
+package com.mygit.codec;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import com.mygit.util.Config;
+
+/**
+ * Chooses a zlib level per object. Levels can be set per object type with
+ * {@code compression.<type>} (and globally with {@code core.compression});
+ * blobs that are already compressed or look like random data are stored at
+ * level 0, since deflating them burns CPU for no gain.
+ */
+public class CompressionPolicy {
+    private static final int SAMPLE_SIZE = 4096;
+    private static final int MIN_ENTROPY_SAMPLE = 1024;
+    private static final double INCOMPRESSIBLE_BITS_PER_BYTE = 7.5;
+
+    private static final byte[][] COMPRESSED_MAGIC = {
+            { 'P', 'K', 3, 4 }, // zip, jar, docx, apk
+            { (byte) 0x1F, (byte) 0x8B }, // gzip
+            { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF }, // jpeg
+            { (byte) 0x89, 'P', 'N', 'G' }, // png
+            { 'G', 'I', 'F', '8' }, // gif
+            { 'B', 'Z', 'h' }, // bzip2
+            { (byte) 0xFD, '7', 'z', 'X', 'Z', 0 }, // xz
+            { '7', 'z', (byte) 0xBC, (byte) 0xAF, 0x27, 0x1C }, // 7z
+            { 0x28, (byte) 0xB5, 0x2F, (byte) 0xFD }, // zstd
+    };
+
+    private final int defaultLevel;
+    private final Map<String, Integer> typeLevels = new HashMap<>();
+
+    public CompressionPolicy(int defaultLevel) {
+        this.defaultLevel = defaultLevel;
+    }
+
+    public static CompressionPolicy fromConfig() {
+        Map<String, String> cfg = Config.readUser();
+        CompressionPolicy policy = new CompressionPolicy(
+                level(cfg, "core.compression", Deflater.DEFAULT_COMPRESSION));
+        for (String type : new String[] { "blob", "tree", "commit" }) {
+            String key = "compression." + type;
+            if (cfg.containsKey(key))
+                policy.setLevel(type, level(cfg, key, policy.defaultLevel));
+        }
+        return policy;
+    }
+
+    public void setLevel(String type, int level) {
+        typeLevels.put(type, level);
+    }
+
+    public int levelFor(String type) {
+        return typeLevels.getOrDefault(type, defaultLevel);
+    }
+
+    /** Level for an object whose body is {@code buf[off, off + len)}. */
+    public int levelFor(String type, byte[] buf, int off, int len) {
+        if ("blob".equals(type) && isIncompressible(buf, off, len))
+            return Deflater.NO_COMPRESSION;
+        return levelFor(type);
+    }
+
+    public static boolean isIncompressible(byte[] buf, int off, int len) {
+        for (byte[] magic : COMPRESSED_MAGIC) {
+            if (startsWith(buf, off, len, magic))
+                return true;
+        }
+        if (len < MIN_ENTROPY_SAMPLE)
+            return false;
+        return entropy(buf, off, Math.min(len, SAMPLE_SIZE)) > INCOMPRESSIBLE_BITS_PER_BYTE;
+    }
+
+    private static boolean startsWith(byte[] buf, int off, int len, byte[] magic) {
+        if (len < magic.length)
+            return false;
+        for (int i = 0; i < magic.length; i++) {
+            if (buf[off + i] != magic[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static double entropy(byte[] buf, int off, int len) {
+        int[] counts = new int[256];
+        for (int i = off; i < off + len; i++)
+            counts[buf[i] & 0xFF]++;
+
+        double bits = 0;
+        for (int c : counts) {
+            if (c == 0)
+                continue;
+            double p = (double) c / len;
+            bits -= p * (Math.log(p) / Math.log(2));
+        }
+        return bits;
+    }
+
+    private static int level(Map<String, String> cfg, String key, int defaultLevel) {
+        String value = cfg.get(key);
+        if (value == null)
+            return defaultLevel;
+        try {
+            int level = Integer.parseInt(value.trim());
+            if (level < -1 || level > 9)
+                throw new NumberFormatException();
+            return level;
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Invalid compression level for " + key + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.mygit.codec;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib compression with one pooled {@link Deflater} and {@link Inflater} per
+ * thread. The pooled instances are reset between uses and never ended, so the
+ * native zlib state is allocated once per thread instead of once per object.
+ */
+public final class ZlibCodec {
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    private static final int HEADER_PEEK = 32;
+
+    private ZlibCodec() {
+    }
+
+    /**
+     * Returns this thread's deflater, reset and set to {@code level}. It must
+     * not be ended and must not be held across another call into this class.
+     */
+    public static Deflater deflater(int level) {
+        Deflater d = DEFLATERS.get();
+        d.reset();
+        d.setLevel(level);
+        return d;
+    }
+
+    /** Returns this thread's inflater, reset. Same rules as {@link #deflater}. */
+    public static Inflater inflater() {
+        Inflater i = INFLATERS.get();
+        i.reset();
+        return i;
+    }
+
+    public static byte[] deflate(byte[] input, int level) {
+        return deflate(input, 0, input.length, level);
+    }
+
+    public static byte[] deflate(byte[] input, int off, int len, int level) {
+        Deflater d = deflater(level);
+        d.setInput(input, off, len);
+        d.finish();
+
+        byte[] out = new byte[deflateBound(len)];
+        int n = 0;
+        while (!d.finished()) {
+            if (n == out.length)
+                out = Arrays.copyOf(out, out.length * 2);
+            n += d.deflate(out, n, out.length - n);
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    /** Inflates a stream of unknown size. */
+    public static byte[] inflate(byte[] input) {
+        Inflater inf = inflater();
+        inf.setInput(input);
+        return inflateRemaining(inf, new byte[Math.max(64, input.length * 4)], 0);
+    }
+
+    /** Inflates a stream whose inflated size is known up front. */
+    public static byte[] inflate(byte[] input, int size) {
+        Inflater inf = inflater();
+        inf.setInput(input);
+        return inflateRemaining(inf, new byte[size], 0);
+    }
+
+    /**
+     * Inflates a stored object ("type size\0data"). The header is inflated
+     * first and the output buffer allocated at the exact object size, so no
+     * intermediate buffers are grown or copied. Streams without a valid
+     * header are inflated like {@link #inflate(byte[])}.
+     */
+    public static byte[] inflateObject(byte[] input) {
+        Inflater inf = inflater();
+        inf.setInput(input);
+
+        byte[] head = new byte[HEADER_PEEK];
+        int n = fill(inf, head, 0);
+
+        long total = objectLength(head, n);
+        if (total < n || total > Integer.MAX_VALUE - 8) {
+            return inflateRemaining(inf, Arrays.copyOf(head, Math.max(64, input.length * 4)), n);
+        }
+
+        byte[] out = new byte[(int) total];
+        System.arraycopy(head, 0, out, 0, n);
+        return inflateRemaining(inf, out, n);
+    }
+
+    private static byte[] inflateRemaining(Inflater inf, byte[] out, int n) {
+        byte[] spare = new byte[1];
+        try {
+            while (!inf.finished()) {
+                if (n == out.length) {
+                    // The buffer may be exactly full with only the zlib trailer
+                    // left; probe with one byte before growing.
+                    int r = inf.inflate(spare);
+                    if (r == 0) {
+                        checkProgress(inf);
+                        continue;
+                    }
+                    out = Arrays.copyOf(out, Math.max(64, out.length * 2));
+                    out[n++] = spare[0];
+                    continue;
+                }
+                int r = inf.inflate(out, n, out.length - n);
+                if (r == 0)
+                    checkProgress(inf);
+                n += r;
+            }
+        } catch (DataFormatException e) {
+            throw new RuntimeException("Decompression failed", e);
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    private static int fill(Inflater inf, byte[] buf, int n) {
+        try {
+            while (n < buf.length && !inf.finished()) {
+                int r = inf.inflate(buf, n, buf.length - n);
+                if (r == 0)
+                    checkProgress(inf);
+                n += r;
+            }
+            return n;
+        } catch (DataFormatException e) {
+            throw new RuntimeException("Decompression failed", e);
+        }
+    }
+
+    private static void checkProgress(Inflater inf) throws DataFormatException {
+        if (!inf.finished() && (inf.needsInput() || inf.needsDictionary()))
+            throw new DataFormatException("Truncated zlib stream");
+    }
+
+    /** Total length of "type size\0data" from its header, or -1 if not a header. */
+    private static long objectLength(byte[] head, int n) {
+        int nul = 0;
+        while (nul < n && head[nul] != 0)
+            nul++;
+        if (nul == n)
+            return -1;
+
+        int sp = 0;
+        while (sp < nul && head[sp] != ' ')
+            sp++;
+        if (sp == 0 || sp >= nul - 1)
+            return -1;
+
+        long size = 0;
+        for (int i = sp + 1; i < nul; i++) {
+            int d = head[i] - '0';
+            if (d < 0 || d > 9)
+                return -1;
+            size = size * 10 + d;
+        }
+        return nul + 1 + size;
+    }
+
+    private static int deflateBound(int len) {
+        // zlib's compressBound(), which also covers level 0 (stored blocks).
+        return len + (len >>> 12) + (len >>> 14) + (len >>> 25) + 13;
+    }
+}
@@ -3,6 +3,8 @@ package com.mygit.command;
 import com.mygit.ignore.IgnoreMatcher;
 import com.mygit.index.Index;
 import com.mygit.index.IndexEntry;
+import com.mygit.storage.ObjectId;
+import com.mygit.storage.ObjectInserter;
 import com.mygit.storage.ObjectStore;
 import com.mygit.util.FileStat;
 import com.mygit.util.HashUtils;
@@ -10,10 +12,19 @@ import com.mygit.util.HashUtils;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class AddCommand {
 
+    // Files above this size are streamed into the object store instead of
+    // being read into memory first.
+    private static final long STREAM_THRESHOLD = 8L * 1024 * 1024;
+
     private final ObjectStore store;
     private final Index index;
     private final IgnoreMatcher ignore;
@@ -45,6 +56,8 @@ public class AddCommand {
             } else {
                 addFile(path);
             }
+            // Everything staged by this command goes out in one write.
+            index.save();
         } catch (Exception e) {
             throw new RuntimeException("Add failed", e);
         }
@@ -53,17 +66,38 @@ public class AddCommand {
     // ================= CORE =================
 
     private void addDirectory(Path dir) throws Exception {
+        List<Path> files;
         try (Stream<Path> stream = Files.walk(dir)) {
-            stream
+            files = stream
                     .filter(Files::isRegularFile)
                     .filter(p -> !p.startsWith(repoRoot.resolve(".mygit")))
-                    .forEach(p -> {
-                        try {
-                            addFile(p);
-                        } catch (Exception e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
+                    .collect(Collectors.toList());
+        }
+
+        // Blobs are read, hashed and deflated on the worker pool and written
+        // together at flush; only then are they staged.
+        List<PendingAdd> added = new ArrayList<>();
+        try (ObjectInserter inserter = store.newInserter()) {
+            for (Path p : files) {
+                String relativePath = repoRelative(p);
+                if (ignore.isIgnored(relativePath)) {
+                    continue;
+                }
+
+                FileStat stat = FileStat.fromPath(p);
+                Future<ObjectId> blob;
+                if (stat.size > STREAM_THRESHOLD) {
+                    blob = CompletableFuture.completedFuture(ObjectId.fromHex(store.writeBlob(p)));
+                } else {
+                    blob = inserter.insertBlob(p);
+                }
+                added.add(new PendingAdd(relativePath, stat, blob));
+            }
+            inserter.flush();
+        }
+
+        for (PendingAdd a : added) {
+            stage(a.relativePath, a.stat, a.blob.get().name());
         }
     }
 
@@ -76,11 +110,19 @@ public class AddCommand {
             return;
         }
 
-        byte[] content = Files.readAllBytes(path);
-        String blobSha = store.writeBlob(content);
-
         FileStat stat = FileStat.fromPath(path);
 
+        String blobSha;
+        if (stat.size > STREAM_THRESHOLD) {
+            blobSha = store.writeBlob(path);
+        } else {
+            blobSha = store.writeBlob(Files.readAllBytes(path));
+        }
+
+        stage(relativePath, stat, blobSha);
+    }
+
+    private void stage(String relativePath, FileStat stat, String blobSha) throws Exception {
         IndexEntry entry = new IndexEntry();
         entry.ctimeSecs = (int) stat.ctime;
         entry.ctimeNsecs = 0;
@@ -97,13 +139,24 @@ public class AddCommand {
         entry.flags = (short) Math.min(relativePath.length(), 0xFFF);
 
         index.addorReplace(entry);
-        index.save();
 
         System.out.println("Added: " + relativePath);
     }
 
     // ================= UTILS =================
 
+    private static class PendingAdd {
+        final String relativePath;
+        final FileStat stat;
+        final Future<ObjectId> blob;
+
+        PendingAdd(String relativePath, FileStat stat, Future<ObjectId> blob) {
+            this.relativePath = relativePath;
+            this.stat = stat;
+            this.blob = blob;
+        }
+    }
+
     private String repoRelative(Path path) {
         return repoRoot
                 .relativize(path.toAbsolutePath())
@@ -7,6 +7,7 @@ import java.nio.file.Paths;
 import java.util.*;
 
 import com.mygit.RefsUtil;
+import com.mygit.storage.ObjectId;
 import com.mygit.storage.ObjectStore;
 import com.mygit.storage.TreeReader;
 import com.mygit.storage.TreeReader.TreeEntry;
@@ -60,12 +61,12 @@ public class CheckOutCommand {
             RefsUtil.switchBranch(target);
             commitSha = RefsUtil.readHEAD();
 
-        } else if (objectExistsAsCommit(target)) {
-            commitSha = target;
-            RefsUtil.updateHEADWithSha(commitSha);
-
         } else {
-            throw new RuntimeException("Branch or commit not found: " + target);
+            commitSha = resolveCommit(target);
+            if (commitSha == null) {
+                throw new RuntimeException("Branch or commit not found: " + target);
+            }
+            RefsUtil.updateHEADWithSha(commitSha);
         }
 
         // ---------- LOAD COMMIT ----------
@@ -157,9 +158,9 @@ public class CheckOutCommand {
         for (TreeEntry e : reader.readTree(treeSha)) {
             String path = base.isEmpty() ? e.name : base + "/" + e.name;
             if (e.isTree()) {
-                walkTree(e.shaHex, path, out);
+                walkTree(e.shaHex(), path, out);
             } else {
-                out.put(path, e.shaHex);
+                out.put(path, e.shaHex());
             }
         }
     }
@@ -265,13 +266,10 @@ public class CheckOutCommand {
     // MISC
     // =========================================================
 
-    private boolean objectExistsAsCommit(String sha) {
-        try {
-            ObjectStore.ParseObject po = store.parseObject(store.readObject(sha));
-            return "commit".equals(po.type);
-        } catch (Exception e) {
-            return false;
-        }
+    /** Full SHA of the commit named by a full or abbreviated SHA, or null. */
+    private String resolveCommit(String name) {
+        ObjectId id = store.resolve(name, "commit");
+        return id == null ? null : id.name();
     }
 
     private String extractTreeSha(String commitBody) {
@@ -17,6 +17,10 @@ import com.mygit.util.HashUtils;
 
 public class DiffCommand {
 
+    // Line diffs above this size are skipped; the LCS table grows with the
+    // product of both line counts.
+    private static final long DIFF_SIZE_LIMIT = 1024 * 1024;
+
     private final ObjectStore store = ObjectStore.openDefault();
     private final TreeReader reader = new TreeReader(store);
 
@@ -97,6 +101,10 @@ public class DiffCommand {
 
     public String diffWorkingFile(String file) {
         try {
+            if (Files.size(Paths.get(file)) > DIFF_SIZE_LIMIT) {
+                return largeDiffMessage(file);
+            }
+
             String working;
             try {
                 working = Files.readString(Paths.get(file));
@@ -117,11 +125,16 @@ public class DiffCommand {
             if (ie == null)
                 return "";
 
+            String indexSha = HashUtils.toHex(ie.sha1);
+            if (store.readHeader(indexSha).size > DIFF_SIZE_LIMIT) {
+                return largeDiffMessage(file);
+            }
+
             String indexText;
             try {
                 indexText = new String(
                         store.parseObject(
-                                store.readObject(HashUtils.toHex(ie.sha1))).data);
+                                store.readObject(indexSha)).data);
             } catch (Exception e) {
                 return binaryDiffMessage(file);
             }
@@ -164,9 +177,9 @@ public class DiffCommand {
         for (TreeEntry e : reader.readTree(treeSha)) {
             String path = base.isEmpty() ? e.name : base + "/" + e.name;
             if (e.isTree()) {
-                walkTree(e.shaHex, path, out);
+                walkTree(e.shaHex(), path, out);
             } else {
-                out.put(path, e.shaHex);
+                out.put(path, e.shaHex());
             }
         }
     }
@@ -192,6 +205,15 @@ public class DiffCommand {
         sb.append("Binary file, diff not supported.\n\n");
         return sb.toString();
     }
+
+    private String largeDiffMessage(String file) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("diff -- ").append(file).append("\n");
+        sb.append("--- a/").append(file).append("\n");
+        sb.append("+++ b/").append(file).append("\n");
+        sb.append("File too large, diff not supported.\n\n");
+        return sb.toString();
+    }
 
     private String extractTreeSha(String body) {
         for (String line : body.split("\n")) {
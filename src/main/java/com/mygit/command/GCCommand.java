@@ -1,42 +1,202 @@
 package com.mygit.command;
 
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 
 import com.mygit.RefsUtil;
+import com.mygit.index.Index;
+import com.mygit.index.IndexEntry;
+import com.mygit.pack.CommitGraph;
+import com.mygit.pack.PackBitmap;
+import com.mygit.pack.PackManager;
+import com.mygit.pack.PackManager.PackBundle;
 import com.mygit.pack.PackWriter;
 import com.mygit.pack.ReachabilityWalker;
 import com.mygit.pack.PackWriter.PackResult;
+import com.mygit.storage.ObjectId;
+import com.mygit.storage.LooseObjectIndex;
+import com.mygit.storage.ObjectIdSet;
+import com.mygit.storage.ObjectStore;
+import com.mygit.util.Config;
 
 public class GCCommand {
+    private static final long DEFAULT_GEOMETRIC_FACTOR = 2;
+
     public void run() {
         ReachabilityWalker walker = new ReachabilityWalker();
-        Set<String> reachable = walker.reachableFromRefs();
+        ObjectIdSet reachable = walker.reachableFromRefs();
         System.out.println("Reachable Objects: " + reachable.size());
 
         String headRaw = RefsUtil.readHEADRaw();
-        if (headRaw != null && !headRaw.startsWith("ref: ") && !headRaw.isBlank()) {
-            reachable.add(headRaw.trim());
+        if (headRaw != null && ObjectId.isId(headRaw)) {
+            reachable.add(ObjectId.fromHex(headRaw));
+        }
+
+        // Staged blobs are not reachable from a ref yet, but the packs that
+        // hold them are about to be deleted.
+        Index index = new Index(Paths.get(".mygit"));
+        try {
+            index.load();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read index", e);
+        }
+        for (IndexEntry e : index.getEntries())
+            reachable.add(ObjectId.fromRaw(e.sha1));
+
+        // Objects borrowed from alternates stay there; only pack our own.
+        ObjectStore store = ObjectStore.openDefault();
+        ObjectIdSet local = new ObjectIdSet(reachable.size());
+        for (ObjectId id : reachable) {
+            if (store.hasLocal(id))
+                local.add(id);
         }
 
         PackWriter writer = new PackWriter();
-        PackResult res = writer.packObjects(reachable);
+        PackResult res = writer.packObjects(local, walker.pathHashes());
         System.out.println("Pack created: " + res.pack);
         System.out.println("Index created: " + res.idx);
 
-        movePackedToBackup(reachable);
+        movePackedToBackup(local);
+
+        // The new pack holds everything still needed; drop the rest.
+        PackManager packs = store.getPackManager();
+        packs.rescan();
+        List<String> superseded = new ArrayList<>();
+        for (PackBundle b : packs.packs()) {
+            if (!b.name.equals(packName(res)))
+                superseded.add(b.name);
+        }
+        packs.delete(superseded);
+        packs.updateMultiPackIndex();
+        System.out.println("Removed packs: " + superseded.size());
+
+        writeCommitGraph(store, walker);
+        writeBitmaps(store, walker, res);
+    }
+
+    /**
+     * Packs only the loose objects into a new small pack, then rolls packs
+     * up geometrically: sorted by object count, each pack must hold at
+     * least {@code gc.geometricFactor} times as many objects as all the
+     * smaller ones together, and the smallest packs that break this are
+     * merged into one. Work stays proportional to recent activity. If a
+     * merged pack had bitmaps, they are rebuilt for the new pack.
+     */
+    public void runIncremental() {
+        Path objectsDir = Paths.get(".mygit").resolve("objects");
+        ObjectIdSet loose = new ObjectIdSet();
+        LooseObjectIndex.forDirectory(objectsDir).findAll(loose);
+        System.out.println("Loose Objects: " + loose.size());
+
+        PackWriter writer = new PackWriter();
+        if (!loose.isEmpty()) {
+            PackResult res = writer.packObjects(loose);
+            System.out.println("Pack created: " + res.pack);
+            movePackedToBackup(loose);
+        }
+
+        ObjectStore store = ObjectStore.openDefault();
+        ReachabilityWalker walker = new ReachabilityWalker();
+        writeCommitGraph(store, walker);
+
+        PackManager packs = store.getPackManager();
+        packs.rescan();
+        List<PackBundle> rollUp = geometricRollUp(packs.packs(),
+                Config.getLong("gc.geometricFactor", DEFAULT_GEOMETRIC_FACTOR));
+        if (rollUp.size() < 2) {
+            System.out.println("Packs: " + packs.packs().size() + ", nothing to roll up");
+            return;
+        }
+
+        // Walk while the old bitmaps still exist: they speed the walk up and
+        // hold the name hashes of the objects they cover.
+        boolean bitmapped = false;
+        for (PackBundle b : rollUp)
+            bitmapped |= Files.exists(objectsDir.resolve("pack").resolve(b.name + PackBitmap.EXTENSION));
+        if (bitmapped)
+            walker.reachableFromRefs();
+
+        ObjectIdSet ids = new ObjectIdSet();
+        for (PackBundle b : rollUp) {
+            for (int i = 0; i < b.index.size(); i++)
+                ids.add(b.index.objectId(i));
+        }
+        PackResult merged = new PackWriter().packObjects(ids);
+        List<String> superseded = new ArrayList<>();
+        for (PackBundle b : rollUp) {
+            if (!b.name.equals(packName(merged)))
+                superseded.add(b.name);
+        }
+        packs.delete(superseded);
+        packs.updateMultiPackIndex();
+        System.out.println("Rolled up " + rollUp.size() + " packs into: " + merged.pack);
+        if (bitmapped)
+            writeBitmaps(store, walker, merged);
+    }
+
+    private void writeCommitGraph(ObjectStore store, ReachabilityWalker walker) {
+        int commits = CommitGraph.write(store.getObjectsDir(), store, walker.refTips());
+        System.out.println("Commit graph: " + commits + " commits");
+    }
+
+    // Only commits whose whole history is in the pack get a bitmap.
+    private void writeBitmaps(ObjectStore store, ReachabilityWalker walker, PackResult res) {
+        PackManager packs = store.getPackManager();
+        packs.rescan();
+        for (PackBundle b : packs.packs()) {
+            if (b.name.equals(packName(res))) {
+                int count = PackBitmap.write(res.idx.getParent(), b.name, b.index, store, walker.refTips(),
+                        walker.pathHashes());
+                System.out.println("Bitmaps: " + count + " commits");
+            }
+        }
+    }
+
+    private static String packName(PackResult res) {
+        return res.idx.getFileName().toString().replace(".idx", "");
+    }
+
+    /**
+     * The packs to merge, smallest first: the shortest prefix of the packs
+     * sorted by object count after which every pack is at least
+     * {@code factor} times the size of everything before it.
+     */
+    static List<PackBundle> geometricRollUp(List<PackBundle> packs, long factor) {
+        List<PackBundle> sorted = new ArrayList<>(packs);
+        sorted.sort(Comparator.comparingInt((PackBundle b) -> b.index.size()).thenComparing(b -> b.name));
+
+        // Largest pack smaller than factor times all packs below it. Every
+        // pack above it already holds factor times everything below, the
+        // merged pack included, so the packs up to it are merged.
+        long[] below = new long[sorted.size()];
+        for (int i = 1; i < sorted.size(); i++)
+            below[i] = below[i - 1] + sorted.get(i - 1).index.size();
+        int split = 0;
+        for (int i = sorted.size() - 1; i > 0; i--) {
+            if (sorted.get(i).index.size() < factor * below[i]) {
+                split = i;
+                break;
+            }
+        }
+        if (split == 0)
+            return new ArrayList<>();
+        return new ArrayList<>(sorted.subList(0, split + 1));
     }
 
-    private void movePackedToBackup(Set<String> shas) {
+    private void movePackedToBackup(ObjectIdSet ids) {
         Path objectsDir = Paths.get(".mygit").resolve("objects");
         Path backupDir = objectsDir.resolve("backup");
 
         try {
             Files.createDirectories(backupDir);
-            for (String sha : shas) {
+            for (ObjectId id : ids) {
+                String sha = id.name();
                 Path objPath = objectsDir.resolve(sha.substring(0, 2)).resolve(sha.substring(2));
 
                 if (Files.exists(objPath)) {
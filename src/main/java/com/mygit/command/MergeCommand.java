@@ -5,6 +5,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import com.mygit.RefsUtil;
+import com.mygit.storage.ObjectId;
 import com.mygit.storage.ObjectStore;
 import com.mygit.util.MergeResult;
 import com.mygit.util.Merger;
@@ -28,7 +29,10 @@ public class MergeCommand {
                 throw new RuntimeException("Failed reading branch ref: " + targetRefOrSha, e);
             }
         } else {
-            targetSha = targetRefOrSha;
+            ObjectId id = store.resolve(targetRefOrSha, "commit");
+            if (id == null)
+                throw new RuntimeException("Branch or commit not found: " + targetRefOrSha);
+            targetSha = id.name();
             targetLabel = targetRefOrSha.length() > 7 ? targetRefOrSha.substring(0, 7) : targetRefOrSha;
         }
 
@@ -69,7 +69,7 @@ public class ResetCommand {
     private void resetIndexToCommit(String commitSha) {
 
         Index index = new Index(Paths.get(".mygit"));
-        index.getEntries().clear();
+        index.clear();
 
         Map<String, String> files = loadTreeFiles(commitSha);
 
@@ -102,9 +102,9 @@ public class ResetCommand {
         for (TreeEntry e : reader.readTree(treeSha)) {
             String path = base.isEmpty() ? e.name : base + "/" + e.name;
             if (e.isTree()) {
-                loadTree(e.shaHex, path, out);
+                loadTree(e.shaHex(), path, out);
             } else {
-                out.put(path, e.shaHex);
+                out.put(path, e.shaHex());
             }
         }
     }
@@ -72,7 +72,7 @@ public class RestoreCommand {
         }
 
         if (".".equals(target)) {
-            index.getEntries().clear();
+            index.clear();
             System.out.println("Unstaged all files.");
         } else {
             index.remove(target);
@@ -100,9 +100,9 @@ public class RestoreCommand {
         for (TreeEntry e : reader.readTree(treeSha)) {
             String path = base.isEmpty() ? e.name : base + "/" + e.name;
             if (e.isTree()) {
-                loadTree(e.shaHex, path, out);
+                loadTree(e.shaHex(), path, out);
             } else {
-                out.put(path, e.shaHex);
+                out.put(path, e.shaHex());
             }
         }
     }
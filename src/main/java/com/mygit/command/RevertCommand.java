@@ -7,6 +7,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.mygit.storage.ObjectId;
 import com.mygit.storage.ObjectStore;
 import com.mygit.storage.TreeReader;
 import com.mygit.storage.TreeReader.TreeEntry;
@@ -21,6 +22,12 @@ public class RevertCommand {
             throw new RuntimeException("Working tree is not clean");
         }
 
+        ObjectId id = store.resolve(commitSha, "commit");
+        if (id == null) {
+            throw new RuntimeException("Commit not found: " + commitSha);
+        }
+        commitSha = id.name();
+
         ObjectStore.ParseObject commit = store.parseObject(store.readObject(commitSha));
 
         if (!"commit".equals(commit.type)) {
@@ -64,9 +71,9 @@ public class RevertCommand {
         for (TreeEntry e : entries) {
             String path = base.isEmpty() ? e.name : base + "/" + e.name;
             if (e.isTree()) {
-                loadTree(e.shaHex, path, out);
+                loadTree(e.shaHex(), path, out);
             } else {
-                out.put(path, e.shaHex);
+                out.put(path, e.shaHex());
             }
         }
     }
@@ -10,6 +10,7 @@ import com.mygit.RefsUtil;
 import com.mygit.ignore.IgnoreMatcher;
 import com.mygit.index.Index;
 import com.mygit.index.IndexEntry;
+import com.mygit.storage.ObjectId;
 import com.mygit.storage.ObjectStore;
 import com.mygit.storage.TreeReader;
 import com.mygit.storage.TreeReader.TreeEntry;
@@ -54,7 +55,7 @@ public class StatusCommand {
         untracked.clear();
         ignored.clear();
 
-        Map<String, String> headFiles = loadHeadFiles();
+        Map<String, ObjectId> headFiles = loadHeadFiles();
         Map<String, IndexEntry> indexFiles = loadIndexFiles();
         Set<String> workFiles = scanWorkingDirectory();
 
@@ -62,8 +63,8 @@ public class StatusCommand {
         for (String path : indexFiles.keySet()) {
 
             IndexEntry ie = indexFiles.get(path);
-            String indexSha = HashUtils.toHex(ie.sha1);
-            String headSha = headFiles.get(path);
+            ObjectId indexSha = ObjectId.fromRaw(ie.sha1);
+            ObjectId headSha = headFiles.get(path);
 
             if (!Objects.equals(indexSha, headSha)) {
                 staged.add(path);
@@ -75,7 +76,7 @@ public class StatusCommand {
                     FileStat stat = FileStat.fromPath(wp);
 
                     byte[] content = Files.readAllBytes(wp);
-                    String workSha = computeBlobSha(content);
+                    ObjectId workSha = computeBlobSha(content);
 
                     if (!workSha.equals(indexSha)) {
                         modified.add(path);
@@ -99,8 +100,8 @@ public class StatusCommand {
 
     // ================= HELPERS =================
 
-    private Map<String, String> loadHeadFiles() {
-        Map<String, String> map = new HashMap<>();
+    private Map<String, ObjectId> loadHeadFiles() {
+        Map<String, ObjectId> map = new HashMap<>();
         String head = RefsUtil.readHEAD();
         if (head == null)
             return map;
@@ -114,7 +115,7 @@ public class StatusCommand {
             String body = new String(po.data);
             for (String line : body.split("\n")) {
                 if (line.startsWith("tree ")) {
-                    walkTree(line.substring(5).trim(), "", map);
+                    walkTree(ObjectId.fromHex(line.substring(5).trim()), "", map);
                     break;
                 }
             }
@@ -123,14 +124,14 @@ public class StatusCommand {
         return map;
     }
 
-    private void walkTree(String treeSha, String prefix, Map<String, String> map) {
-        List<TreeEntry> entries = new TreeReader(store).readTree(treeSha);
+    private void walkTree(ObjectId treeId, String prefix, Map<String, ObjectId> map) {
+        List<TreeEntry> entries = new TreeReader(store).readTree(treeId);
         for (TreeEntry e : entries) {
             String path = prefix.isEmpty() ? e.name : prefix + "/" + e.name;
             if (e.isTree()) {
-                walkTree(e.shaHex, path, map);
+                walkTree(e.id, path, map);
             } else {
-                map.put(path, e.shaHex);
+                map.put(path, e.id);
             }
         }
     }
@@ -165,7 +166,7 @@ public class StatusCommand {
         return files;
     }
 
-    private String computeBlobSha(byte[] content) {
+    private ObjectId computeBlobSha(byte[] content) {
         String header = "blob " + content.length + "\0";
         byte[] headerBytes = header.getBytes(StandardCharsets.UTF_8);
 
@@ -173,7 +174,7 @@ public class StatusCommand {
         System.arraycopy(headerBytes, 0, store, 0, headerBytes.length);
         System.arraycopy(content, 0, store, headerBytes.length, content.length);
 
-        return HashUtils.toHex(HashUtils.sha1(store));
+        return ObjectId.fromRaw(HashUtils.sha1(store));
     }
 
     // ================= OUTPUT =================
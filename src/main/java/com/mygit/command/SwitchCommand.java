@@ -146,7 +146,7 @@ public class SwitchCommand {
             Path path = Paths.get(pathStr);
 
             // Read blob content
-            ObjectStore.ParseObject blob = store.parseObject(store.readObject(te.shaHex));
+            ObjectStore.ParseObject blob = store.parseObject(store.readObject(te.shaHex()));
             if (!"blob".equals(blob.type)) continue;
 
             // Write file
@@ -176,7 +176,7 @@ public class SwitchCommand {
             
             IndexEntry ie = new IndexEntry();
             ie.path = pathStr;
-            ie.sha1 = HashUtils.fromHex(te.shaHex);
+            ie.sha1 = HashUtils.fromHex(te.shaHex());
             ie.flags = (short) pathStr.length(); // Simplified flags
             
             // Populate stat fields
@@ -205,7 +205,7 @@ public class SwitchCommand {
         for (TreeEntry e : reader.readTree(treeSha)) {
             String path = base.isEmpty() ? e.name : base + "/" + e.name;
             if (e.isTree()) {
-                walkTree(e.shaHex, path, out);
+                walkTree(e.shaHex(), path, out);
             } else {
                 out.put(path, e);
             }
@@ -1,93 +1,205 @@
 package com.mygit.index;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import com.mygit.util.Config;
+
+/**
+ * The staging area. The file is read in one go and its entries decoded in
+ * one pass into parallel arrays: ten stat ints per entry in {@code stats}, the
+ * ids back to back in {@code shas}, and the paths as offsets into one UTF-8
+ * buffer, found through an open-addressing table over the path bytes. An
+ * {@link IndexEntry} is only built when a caller asks for that entry.
+ * Changes are kept by path on top of the loaded entries, and entries nobody
+ * looked at are saved straight from the arrays. Entries are kept in byte
+ * order of their UTF-8 paths, as git does.
+ *
+ * <p>Versions 2 and 4 are read; {@code index.version} picks the one written
+ * (4 by default). Version 4 drops the entry padding and stores each path as
+ * a varint count of bytes to strip from the end of the previous path,
+ * followed by the NUL-terminated suffix to append, so shared directory
+ * prefixes are stored once per run instead of once per entry.
+ */
 public class Index {
+    private static final int STAT_INTS = 10;
+    private static final int SHA_LENGTH = 20;
+    // Ten stat ints, the id and the flags.
+    private static final int FIXED_SIZE = STAT_INTS * 4 + SHA_LENGTH + 2;
+    private static final long DEFAULT_VERSION = 4;
+
     private final Path indexPath;
-    private final List<IndexEntry> entries = new ArrayList<>();
+
+    // Loaded entries, in path order.
+    private int count;
+    private int[] stats = new int[0];
+    private byte[] shas = new byte[0];
+    private short[] flags = new short[0];
+    private byte[] paths = new byte[0];
+    private int[] pathStarts = { 0 };
+    private int[] table = new int[0];
+    private IndexEntry[] views = new IndexEntry[0];
+
+    // Added or replaced entries by path; a null value removes the path.
+    private final Map<String, IndexEntry> changed = new HashMap<>();
+    private List<IndexEntry> merged;
 
     public Index(Path gitDir) {
         this.indexPath = gitDir.resolve("index");
     }
 
+    /** Entries in path order; read-only, use the mutators to change them. */
     public List<IndexEntry> getEntries() {
-        return entries;
+        if (changed.isEmpty()) {
+            return new AbstractList<IndexEntry>() {
+                @Override
+                public IndexEntry get(int i) {
+                    if (i < 0 || i >= count)
+                        throw new IndexOutOfBoundsException(i);
+                    return view(i);
+                }
+
+                @Override
+                public int size() {
+                    return count;
+                }
+            };
+        }
+        if (merged == null) {
+            List<IndexEntry> list = new ArrayList<>();
+            try {
+                walk((pos, e) -> list.add(e != null ? e : view(pos)));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            merged = Collections.unmodifiableList(list);
+        }
+        return merged;
     }
 
     public void load() throws IOException {
-        entries.clear();
+        clear();
         if (!Files.exists(indexPath))
             return;
 
-        byte[] all = Files.readAllBytes(indexPath);
-        ByteArrayInputStream bais = new ByteArrayInputStream(all);
-        DataInputStream d = new DataInputStream(bais);
-
-        byte[] magic = new byte[4];
-        d.readFully(magic);
+        // Read rather than mapped: a live mapping would stop save() from
+        // replacing the file on Windows.
+        ByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE)
+                throw new IOException("Index too large: " + ch.size() + " bytes");
+            buf = ByteBuffer.allocate((int) ch.size());
+            while (buf.hasRemaining() && ch.read(buf) >= 0) {
+            }
+            buf.flip();
+        }
 
-        String m = new String(magic, "UTF-8");
-        if (!"DIRC".equals(m))
+        // 0x44495243 is "DIRC".
+        if (buf.limit() < 12 || buf.getInt(0) != 0x44495243)
             throw new IOException("Not an index file");
-        int version = d.readInt();
-        if (version != 2)
+        int version = buf.getInt(4);
+        if (version != 2 && version != 4)
             throw new IOException("Unsupported index version: " + version);
 
-        int entryCount = d.readInt();
+        int n = buf.getInt(8);
+        if (n < 0 || n > (buf.limit() - 12) / (FIXED_SIZE + 1))
+            throw new IOException("Corrupt index: " + n + " entries");
+        stats = new int[n * STAT_INTS];
+        shas = new byte[n * SHA_LENGTH];
+        flags = new short[n];
+        pathStarts = new int[n + 1];
+        // Version 2 paths fit in the file; version 4 paths can outgrow it.
+        byte[] pathBuf = new byte[buf.limit()];
 
+        boolean inOrder = true;
         int offset = 12;
-        for (int i = 0; i < entryCount; i++) {
-            int remaining = all.length - offset;
-            ByteArrayInputStream entryStream = new ByteArrayInputStream(all, offset, remaining);
-            DataInputStream ed = new DataInputStream(entryStream);
-
-            IndexEntry e = new IndexEntry();
-            e.ctimeSecs = ed.readInt();
-            e.ctimeNsecs = ed.readInt();
-            e.mtimeSecs = ed.readInt();
-            e.mtimeNsecs = ed.readInt();
-            e.dev = ed.readInt();
-            e.ino = ed.readInt();
-            e.mode = ed.readInt();
-            e.uid = ed.readInt();
-            e.gid = ed.readInt();
-            e.fileSize = ed.readInt();
-            e.sha1 = new byte[20];
-            ed.readFully(e.sha1);
-            e.flags = ed.readShort();
-
-            ByteArrayOutputStream pathOut = new ByteArrayOutputStream();
-            int consumed = 62;
-            int b;
-
-            while ((b = ed.read()) != 0) {
-                if (b == -1)
-                    throw new EOFException("Unexpected EOF in path");
-                pathOut.write(b);
-                consumed++;
+        for (int i = 0; i < n; i++) {
+            if (offset + FIXED_SIZE >= buf.limit())
+                throw new IOException("Unexpected EOF in index entry " + i);
+            for (int k = 0; k < STAT_INTS; k++)
+                stats[i * STAT_INTS + k] = buf.getInt(offset + k * 4);
+            buf.get(offset + STAT_INTS * 4, shas, i * SHA_LENGTH, SHA_LENGTH);
+            flags[i] = buf.getShort(offset + STAT_INTS * 4 + SHA_LENGTH);
+
+            int pathAt = offset + FIXED_SIZE;
+            int start = pathStarts[i];
+            int previousStart = i == 0 ? 0 : pathStarts[i - 1];
+            int keep = 0;
+            if (version == 4) {
+                // Strip count: git's offset varint, each continuation adds one.
+                int c = buf.get(pathAt++) & 0xFF;
+                long strip = c & 127;
+                while ((c & 128) != 0 && pathAt < buf.limit()) {
+                    c = buf.get(pathAt++) & 0xFF;
+                    strip = ((strip + 1) << 7) | (c & 127);
+                }
+                int previousLength = start - previousStart;
+                if (strip > previousLength)
+                    throw new IOException("Corrupt index: bad path prefix in entry " + i);
+                keep = previousLength - (int) strip;
             }
-            consumed++;
-            e.path = pathOut.toString("UTF-8");
+            int end = pathAt;
+            while (end < buf.limit() && buf.get(end) != 0)
+                end++;
+            if (end == buf.limit())
+                throw new IOException("Unexpected EOF in path");
+            int length = keep + end - pathAt;
+            if (start + length > pathBuf.length)
+                pathBuf = Arrays.copyOf(pathBuf, Math.max(start + length, pathBuf.length * 2));
+            System.arraycopy(pathBuf, previousStart, pathBuf, start, keep);
+            buf.get(pathAt, pathBuf, start + keep, end - pathAt);
+            pathStarts[i + 1] = start + length;
 
-            int entryLen = consumed;
-            int pad = (8 - (entryLen % 8)) % 8;
+            if (version == 4) {
+                offset = end + 1;
+            } else {
+                int entryLen = FIXED_SIZE + length + 1;
+                offset += entryLen + (8 - (entryLen % 8)) % 8;
+            }
+
+            if (i > 0 && Arrays.compareUnsigned(pathBuf, previousStart, start,
+                    pathBuf, start, start + length) >= 0)
+                inOrder = false;
+        }
+        paths = pathBuf;
+        count = n;
+        views = new IndexEntry[n];
+
+        // Indexes written before entries were sorted are read as changes,
+        // which puts them in order on the next save.
+        if (!inOrder) {
+            List<IndexEntry> all = new ArrayList<>(n);
+            for (int i = 0; i < n; i++)
+                all.add(view(i));
+            clear();
+            for (IndexEntry e : all)
+                changed.put(e.path, e);
+            return;
+        }
 
-            for (int p = 0; p < pad; p++)
-                ed.readByte();
-            offset += entryLen + pad;
-            entries.add(e);
+        table = new int[Integer.highestOneBit(Math.max(1, n) * 2) * 2];
+        for (int i = 0; i < n; i++) {
+            int slot = hash(paths, pathStarts[i], pathStarts[i + 1]) & (table.length - 1);
+            while (table[slot] != 0)
+                slot = (slot + 1) & (table.length - 1);
+            table[slot] = i + 1;
         }
     }
 
@@ -99,32 +211,18 @@ public class Index {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         DataOutputStream d = new DataOutputStream(out);
 
+        int version = Config.getLong("index.version", DEFAULT_VERSION) == 2 ? 2 : 4;
         d.writeBytes("DIRC");
-        d.writeInt(2);
-        d.writeInt(entries.size());
-
-        for (IndexEntry e : entries) {
-            d.writeInt(e.ctimeSecs);
-            d.writeInt(e.ctimeNsecs);
-            d.writeInt(e.mtimeSecs);
-            d.writeInt(e.mtimeNsecs);
-            d.writeInt(e.dev);
-            d.writeInt(e.ino);
-            d.writeInt(e.mode);
-            d.writeInt(e.uid);
-            d.writeInt(e.gid);
-            d.writeInt(e.fileSize);
-            d.write(e.sha1);
-            d.writeShort(e.flags & 0xFFFF);
-
-            byte[] pathBytes = e.path.getBytes("UTF-8");
-            d.write(pathBytes);
-            d.writeByte(0);
-            int entryLen = 62 + pathBytes.length + 1;
-            int pad = (8 - (entryLen % 8)) % 8;
-            for (int i = 0; i < pad; i++)
-                d.writeByte(0);
-        }
+        d.writeInt(version);
+        d.writeInt(size());
+
+        EntryWriter writer = new EntryWriter(d, version);
+        walk((pos, e) -> {
+            if (e == null && views[pos] == null)
+                writeLoaded(writer, pos);
+            else
+                writeEntry(writer, e != null ? e : views[pos]);
+        });
 
         byte[] body = out.toByteArray();
         byte[] checksum = com.mygit.util.HashUtils.sha1(body);
@@ -145,31 +243,213 @@ public class Index {
     }
 
     public void addEntry(IndexEntry entry) {
-        entries.add(entry);
+        addorReplace(entry);
     }
 
     public void addorReplace(IndexEntry newEntry) {
-        for (int i = 0; i < entries.size(); i++) {
-            if (entries.get(i).path.equals(newEntry.path)) {
-                entries.set(i, newEntry);
-                return;
-            }
-        }
-        entries.add(newEntry);
+        changed.put(newEntry.path, newEntry);
+        merged = null;
     }
 
     public IndexEntry find(String path) {
-        for (IndexEntry e : entries)
-            if (e.path.equals(path))
-                return e;
-        return null;
+        if (changed.containsKey(path))
+            return changed.get(path);
+        int pos = position(path.getBytes(StandardCharsets.UTF_8));
+        return pos < 0 ? null : view(pos);
     }
 
     public void remove(String path) {
-        entries.removeIf(e -> e.path.equals(path));
+        if (find(path) != null) {
+            changed.put(path, null);
+            merged = null;
+        }
     }
 
     public void clear() {
-        entries.clear();
+        count = 0;
+        stats = new int[0];
+        shas = new byte[0];
+        flags = new short[0];
+        paths = new byte[0];
+        pathStarts = new int[] { 0 };
+        table = new int[0];
+        views = new IndexEntry[0];
+        changed.clear();
+        merged = null;
+    }
+
+    private int size() {
+        int n = count;
+        for (Map.Entry<String, IndexEntry> c : changed.entrySet()) {
+            if (position(c.getKey().getBytes(StandardCharsets.UTF_8)) >= 0)
+                n--;
+            if (c.getValue() != null)
+                n++;
+        }
+        return n;
+    }
+
+    private IndexEntry view(int pos) {
+        IndexEntry e = views[pos];
+        if (e == null) {
+            e = new IndexEntry();
+            int s = pos * STAT_INTS;
+            e.ctimeSecs = stats[s];
+            e.ctimeNsecs = stats[s + 1];
+            e.mtimeSecs = stats[s + 2];
+            e.mtimeNsecs = stats[s + 3];
+            e.dev = stats[s + 4];
+            e.ino = stats[s + 5];
+            e.mode = stats[s + 6];
+            e.uid = stats[s + 7];
+            e.gid = stats[s + 8];
+            e.fileSize = stats[s + 9];
+            e.sha1 = Arrays.copyOfRange(shas, pos * SHA_LENGTH, (pos + 1) * SHA_LENGTH);
+            e.flags = flags[pos];
+            e.path = new String(paths, pathStarts[pos], pathStarts[pos + 1] - pathStarts[pos],
+                    StandardCharsets.UTF_8);
+            views[pos] = e;
+        }
+        return e;
+    }
+
+    private static void writeEntry(EntryWriter w, IndexEntry e) throws IOException {
+        DataOutputStream d = w.out;
+        d.writeInt(e.ctimeSecs);
+        d.writeInt(e.ctimeNsecs);
+        d.writeInt(e.mtimeSecs);
+        d.writeInt(e.mtimeNsecs);
+        d.writeInt(e.dev);
+        d.writeInt(e.ino);
+        d.writeInt(e.mode);
+        d.writeInt(e.uid);
+        d.writeInt(e.gid);
+        d.writeInt(e.fileSize);
+        d.write(e.sha1);
+        d.writeShort(e.flags & 0xFFFF);
+        byte[] path = e.path.getBytes(StandardCharsets.UTF_8);
+        w.writePath(path, 0, path.length);
+    }
+
+    // An entry nobody asked for, straight from the arrays.
+    private void writeLoaded(EntryWriter w, int pos) throws IOException {
+        DataOutputStream d = w.out;
+        for (int k = 0; k < STAT_INTS; k++)
+            d.writeInt(stats[pos * STAT_INTS + k]);
+        d.write(shas, pos * SHA_LENGTH, SHA_LENGTH);
+        d.writeShort(flags[pos] & 0xFFFF);
+        w.writePath(paths, pathStarts[pos], pathStarts[pos + 1] - pathStarts[pos]);
+    }
+
+    private int position(byte[] path) {
+        if (count == 0)
+            return -1;
+        int slot = hash(path, 0, path.length) & (table.length - 1);
+        while (table[slot] != 0) {
+            int pos = table[slot] - 1;
+            if (Arrays.equals(paths, pathStarts[pos], pathStarts[pos + 1], path, 0, path.length))
+                return pos;
+            slot = (slot + 1) & (table.length - 1);
+        }
+        return -1;
+    }
+
+    private static int hash(byte[] b, int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++)
+            h = 31 * h + b[i];
+        return h ^ (h >>> 16);
+    }
+
+    private interface EntryVisitor {
+        /** {@code e} is a changed entry, or null for the loaded entry at {@code pos}. */
+        void visit(int pos, IndexEntry e) throws IOException;
+    }
+
+    // Loaded entries that were not changed merged with the changed ones,
+    // in path order.
+    private void walk(EntryVisitor visitor) throws IOException {
+        BitSet replaced = new BitSet(count);
+        List<Change> added = new ArrayList<>(changed.size());
+        for (Map.Entry<String, IndexEntry> c : changed.entrySet()) {
+            byte[] path = c.getKey().getBytes(StandardCharsets.UTF_8);
+            int pos = position(path);
+            if (pos >= 0)
+                replaced.set(pos);
+            if (c.getValue() != null)
+                added.add(new Change(path, c.getValue()));
+        }
+        added.sort((a, b) -> Arrays.compareUnsigned(a.path, b.path));
+
+        int i = 0;
+        int j = 0;
+        while (i < count || j < added.size()) {
+            if (i < count && replaced.get(i)) {
+                i++;
+            } else if (j == added.size() || (i < count && Arrays.compareUnsigned(paths, pathStarts[i],
+                    pathStarts[i + 1], added.get(j).path, 0, added.get(j).path.length) < 0)) {
+                visitor.visit(i++, null);
+            } else {
+                visitor.visit(-1, added.get(j++).entry);
+            }
+        }
+    }
+
+    /** Writes entry paths in the chosen version, remembering the previous one for version 4. */
+    private static class EntryWriter {
+        final DataOutputStream out;
+        final int version;
+        byte[] previous = new byte[0];
+        int previousStart;
+        int previousLength;
+
+        EntryWriter(DataOutputStream out, int version) {
+            this.out = out;
+            this.version = version;
+        }
+
+        void writePath(byte[] b, int off, int len) throws IOException {
+            if (version == 4) {
+                int common = 0;
+                int max = Math.min(len, previousLength);
+                while (common < max && b[off + common] == previous[previousStart + common])
+                    common++;
+                writeVarint(previousLength - common);
+                out.write(b, off + common, len - common);
+                out.writeByte(0);
+                previous = b;
+                previousStart = off;
+                previousLength = len;
+                return;
+            }
+
+            out.write(b, off, len);
+            out.writeByte(0);
+            int entryLen = FIXED_SIZE + len + 1;
+            int pad = (8 - (entryLen % 8)) % 8;
+            for (int i = 0; i < pad; i++)
+                out.writeByte(0);
+        }
+
+        // Most significant group first; each continuation stands for one
+        // more than its bits, so every value has exactly one encoding.
+        private void writeVarint(long value) throws IOException {
+            byte[] buf = new byte[10];
+            int pos = buf.length - 1;
+            buf[pos] = (byte) (value & 127);
+            while ((value >>>= 7) != 0)
+                buf[--pos] = (byte) (128 | (--value & 127));
+            out.write(buf, pos, buf.length - pos);
+        }
+    }
+
+    private static class Change {
+        final byte[] path;
+        final IndexEntry entry;
+
+        Change(byte[] path, IndexEntry entry) {
+            this.path = path;
+            this.entry = entry;
+        }
     }
 }
@@ -0,0 +1,78 @@
+package com.mygit.pack;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+import com.mygit.storage.ObjectId;
+
+/**
+ * Fixed-size Bloom filter over object ids. SHA-1 output is already uniformly
+ * distributed, so the probe positions are derived from the id bits directly
+ * (double hashing) instead of re-hashing the key. The bits can be written
+ * into a pack index and later read back in place from the mapped file.
+ */
+public class BloomFilter {
+    private static final int BITS_PER_ENTRY = 10;
+    private static final int HASHES = 7;
+
+    private final LongBuffer bits;
+    private final long numBits;
+
+    public BloomFilter(int expectedEntries) {
+        long n = Math.max(64, (long) expectedEntries * BITS_PER_ENTRY);
+        this.bits = LongBuffer.wrap(new long[(int) ((n + 63) >>> 6)]);
+        this.numBits = (long) bits.capacity() << 6;
+    }
+
+    private BloomFilter(LongBuffer bits) {
+        this.bits = bits;
+        this.numBits = (long) bits.capacity() << 6;
+    }
+
+    /** Read-only filter over {@code words} longs stored at the start of {@code buf}. */
+    public static BloomFilter wrap(ByteBuffer buf, int words) {
+        ByteBuffer slice = buf.slice();
+        slice.limit(words * 8);
+        return new BloomFilter(slice.asLongBuffer());
+    }
+
+    public int words() {
+        return bits.capacity();
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        for (int i = 0; i < bits.capacity(); i++)
+            out.writeLong(bits.get(i));
+    }
+
+    public void add(ObjectId id) {
+        long h1 = hash1(id);
+        long h2 = hash2(id);
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, numBits);
+            int word = (int) (bit >>> 6);
+            bits.put(word, bits.get(word) | 1L << bit);
+        }
+    }
+
+    public boolean mightContain(ObjectId id) {
+        long h1 = hash1(id);
+        long h2 = hash2(id);
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, numBits);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static long hash1(ObjectId id) {
+        return ((long) id.word(0) << 32) | (id.word(1) & 0xFFFFFFFFL);
+    }
+
+    private static long hash2(ObjectId id) {
+        return ((long) id.word(2) << 32) | (id.word(3) & 0xFFFFFFFFL);
+    }
+}
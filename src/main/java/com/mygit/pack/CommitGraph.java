@@ -0,0 +1,292 @@
+package com.mygit.pack;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+
+import com.mygit.storage.ObjectId;
+import com.mygit.storage.ObjectIdMap;
+import com.mygit.storage.ObjectStore;
+
+/**
+ * Commit-graph file ({@code objects/info/commit-graph}): every commit
+ * reachable from the refs when it was written, with its tree, parents,
+ * commit time and generation number in fixed-width records read in place
+ * from an in-memory copy of the file. The file is not mapped, since gc
+ * replaces it while commits are being looked up. Layout:
+ *
+ * <pre>
+ * "CGPH" | int version | int[256] fan-out | count x 20-byte id (sorted)
+ *        | count x (20-byte tree | int parent1 | int parent2 | long time | int generation)
+ *        | int extra edges | extra edges x int
+ * </pre>
+ *
+ * Parents are positions in the id table, or {@link #NO_PARENT}. For more
+ * than two parents, parent2 has {@link #EXTRA_EDGES} set and its low bits
+ * index the extra edge list, whose last entry for the commit has
+ * {@link #LAST_EDGE} set. A root has generation 1 and any other commit one
+ * more than its highest parent, so a commit never reaches a commit of equal
+ * or higher generation.
+ */
+public class CommitGraph {
+    public static final String FILE_NAME = "commit-graph";
+
+    static final int NO_PARENT = 0x7FFFFFFF;
+    static final int EXTRA_EDGES = 0x80000000;
+    static final int LAST_EDGE = 0x80000000;
+
+    private static final int VERSION = 1;
+    private static final int FANOUT_START = 8;
+    private static final int RECORD_SIZE = ObjectId.RAW_LENGTH + 4 + 4 + 8 + 4;
+
+    private final ByteBuffer buf;
+    private final IdTable ids;
+    private final int recordsStart;
+    private final int edgesStart;
+
+    private CommitGraph(ByteBuffer buf) {
+        // 0x43475048 is "CGPH".
+        if (buf.limit() < FANOUT_START + IdTable.FANOUT_SIZE || buf.getInt(0) != 0x43475048
+                || buf.getInt(4) != VERSION)
+            throw new RuntimeException("Invalid commit graph");
+
+        this.buf = buf;
+        this.ids = new IdTable(buf, FANOUT_START);
+        this.recordsStart = ids.end();
+        int edgeCountAt = recordsStart + ids.size() * RECORD_SIZE;
+        this.edgesStart = edgeCountAt + 4;
+        if (buf.limit() < edgesStart || buf.limit() != edgesStart + buf.getInt(edgeCountAt) * 4)
+            throw new RuntimeException("Invalid commit graph");
+    }
+
+    /** Opens the commit graph of {@code objectsDir}, or returns null if there is none or it is corrupt. */
+    public static CommitGraph open(Path objectsDir) {
+        Path file = objectsDir.resolve("info").resolve(FILE_NAME);
+        if (!Files.exists(file))
+            return null;
+        try {
+            return new CommitGraph(ByteBuffer.wrap(Files.readAllBytes(file)));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    /** Position of {@code id} in the graph, or a negative value if it is not covered. */
+    public int findPosition(ObjectId id) {
+        return ids.findPosition(id);
+    }
+
+    public ObjectId objectId(int pos) {
+        return ids.objectId(pos);
+    }
+
+    public ObjectId tree(int pos) {
+        byte[] raw = new byte[ObjectId.RAW_LENGTH];
+        buf.get(record(pos), raw);
+        return ObjectId.fromRaw(raw);
+    }
+
+    /** Positions of the parents of the commit at {@code pos}, first parent first. */
+    public int[] parents(int pos) {
+        int at = record(pos) + ObjectId.RAW_LENGTH;
+        int p1 = buf.getInt(at);
+        int p2 = buf.getInt(at + 4);
+        if (p1 == NO_PARENT)
+            return new int[0];
+        if (p2 == NO_PARENT)
+            return new int[] { p1 };
+        if ((p2 & EXTRA_EDGES) == 0)
+            return new int[] { p1, p2 };
+
+        List<Integer> more = new ArrayList<>();
+        int e = edgesStart + (p2 & ~EXTRA_EDGES) * 4;
+        int edge;
+        do {
+            edge = buf.getInt(e);
+            more.add(edge & ~LAST_EDGE);
+            e += 4;
+        } while ((edge & LAST_EDGE) == 0);
+
+        int[] out = new int[1 + more.size()];
+        out[0] = p1;
+        for (int i = 0; i < more.size(); i++)
+            out[i + 1] = more.get(i);
+        return out;
+    }
+
+    public long commitTime(int pos) {
+        return buf.getLong(record(pos) + ObjectId.RAW_LENGTH + 8);
+    }
+
+    public int generation(int pos) {
+        return buf.getInt(record(pos) + ObjectId.RAW_LENGTH + 16);
+    }
+
+    private int record(int pos) {
+        return recordsStart + pos * RECORD_SIZE;
+    }
+
+    /**
+     * Writes the commit graph for every commit reachable from {@code tips},
+     * replacing the old file. Each commit is parsed once; the walk and the
+     * generation numbers use an explicit stack, so history length is not
+     * limited by the call stack. Returns the number of commits written.
+     */
+    public static int write(Path objectsDir, ObjectStore store, Collection<ObjectId> tips) {
+        ObjectIdMap<Commit> commits = new ObjectIdMap<>();
+        List<ObjectId> all = new ArrayList<>();
+
+        Deque<ObjectId> stack = new ArrayDeque<>(tips);
+        while (!stack.isEmpty()) {
+            ObjectId id = stack.peek();
+            Commit c = commits.get(id);
+            if (c == null) {
+                c = Commit.parse(store, id);
+                commits.put(id, c);
+                all.add(id);
+            }
+            if (c.generation > 0) {
+                stack.pop();
+                continue;
+            }
+
+            // Parents first; a commit's generation is set once all of
+            // its parents have one.
+            int max = 0;
+            boolean ready = true;
+            for (ObjectId p : c.parents) {
+                Commit pc = commits.get(p);
+                if (pc == null || pc.generation == 0) {
+                    stack.push(p);
+                    ready = false;
+                } else {
+                    max = Math.max(max, pc.generation);
+                }
+            }
+            if (ready) {
+                c.generation = max + 1;
+                stack.pop();
+            }
+        }
+
+        all.sort(null);
+        ObjectIdMap<Integer> positions = new ObjectIdMap<>(all.size());
+        for (int i = 0; i < all.size(); i++)
+            positions.put(all.get(i), i);
+
+        Path infoDir = objectsDir.resolve("info");
+        Path file = infoDir.resolve(FILE_NAME);
+        Path tmp = infoDir.resolve(".tmp-" + UUID.randomUUID() + "-" + FILE_NAME);
+        try {
+            Files.createDirectories(infoDir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW)))) {
+                out.write("CGPH".getBytes());
+                out.writeInt(VERSION);
+                IdTable.write(out, all);
+
+                List<Integer> edges = new ArrayList<>();
+                for (ObjectId id : all) {
+                    Commit c = commits.get(id);
+                    out.write(c.tree.toByteArray());
+                    int[] parents = c.parentPositions(positions);
+                    out.writeInt(parents.length > 0 ? parents[0] : NO_PARENT);
+                    if (parents.length <= 2) {
+                        out.writeInt(parents.length == 2 ? parents[1] : NO_PARENT);
+                    } else {
+                        out.writeInt(EXTRA_EDGES | edges.size());
+                        for (int i = 1; i < parents.length; i++)
+                            edges.add(i == parents.length - 1 ? parents[i] | LAST_EDGE : parents[i]);
+                    }
+                    out.writeLong(c.time);
+                    out.writeInt(c.generation);
+                }
+                out.writeInt(edges.size());
+                for (int e : edges)
+                    out.writeInt(e);
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return all.size();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write commit graph", e);
+        } finally {
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static class Commit {
+        final ObjectId tree;
+        final List<ObjectId> parents;
+        final long time;
+        int generation;
+
+        Commit(ObjectId tree, List<ObjectId> parents, long time) {
+            this.tree = tree;
+            this.parents = parents;
+            this.time = time;
+        }
+
+        static Commit parse(ObjectStore store, ObjectId id) {
+            ObjectStore.ParseObject po = store.parseObject(store.readObject(id));
+            if (!"commit".equals(po.type))
+                throw new RuntimeException("Not a commit: " + id.name());
+
+            ObjectId tree = null;
+            List<ObjectId> parents = new ArrayList<>(1);
+            long time = 0;
+            for (String line : new String(po.data).split("\n")) {
+                if (line.isEmpty())
+                    break;
+                if (line.startsWith("tree "))
+                    tree = ObjectId.fromHex(line.substring(5).trim());
+                else if (line.startsWith("parent "))
+                    parents.add(ObjectId.fromHex(line.substring(7).trim()));
+                else if (line.startsWith("committer "))
+                    time = parseTime(line);
+            }
+            if (tree == null)
+                throw new RuntimeException("Commit without tree: " + id.name());
+            return new Commit(tree, parents, time);
+        }
+
+        // "committer Name <email> <epoch> <tz>"
+        private static long parseTime(String line) {
+            String[] parts = line.trim().split(" ");
+            try {
+                return parts.length >= 2 ? Long.parseLong(parts[parts.length - 2]) : 0;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        int[] parentPositions(ObjectIdMap<Integer> positions) {
+            int[] out = new int[parents.size()];
+            for (int i = 0; i < out.length; i++)
+                out[i] = positions.get(parents.get(i));
+            return out;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.mygit.pack;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.mygit.storage.ObjectId;
+import com.mygit.storage.ObjectIdMap;
+import com.mygit.storage.ObjectIdSet;
+import com.mygit.storage.ObjectStore;
+
+/**
+ * Parents and generation numbers of commits, read from the
+ * {@link CommitGraph} where it covers a commit and from the commit object
+ * otherwise. Generations of commits made since the graph was written are
+ * computed on first use, which only walks down to the graph. Ancestry
+ * queries built on this prune everything below the generation of interest.
+ */
+public class CommitLookup {
+    private static final int PARENT1 = 1;
+    private static final int PARENT2 = 2;
+
+    private final ObjectStore store;
+    private final CommitGraph graph;
+    private final ObjectIdMap<List<ObjectId>> parsedParents = new ObjectIdMap<>();
+    private final ObjectIdMap<Integer> computedGenerations = new ObjectIdMap<>();
+
+    public CommitLookup(ObjectStore store) {
+        this.store = store;
+        this.graph = CommitGraph.open(store.getObjectsDir());
+    }
+
+    public List<ObjectId> parents(ObjectId id) {
+        int pos = graph == null ? -1 : graph.findPosition(id);
+        if (pos >= 0) {
+            int[] positions = graph.parents(pos);
+            List<ObjectId> out = new ArrayList<>(positions.length);
+            for (int p : positions)
+                out.add(graph.objectId(p));
+            return out;
+        }
+
+        List<ObjectId> parents = parsedParents.get(id);
+        if (parents == null) {
+            parents = new ArrayList<>(1);
+            for (String line : new String(commitData(id)).split("\n")) {
+                if (line.isEmpty())
+                    break;
+                if (line.startsWith("parent "))
+                    parents.add(ObjectId.fromHex(line.substring(7).trim()));
+            }
+            parsedParents.put(id, parents);
+        }
+        return parents;
+    }
+
+    public ObjectId tree(ObjectId id) {
+        int pos = graph == null ? -1 : graph.findPosition(id);
+        if (pos >= 0)
+            return graph.tree(pos);
+        for (String line : new String(commitData(id)).split("\n")) {
+            if (line.isEmpty())
+                break;
+            if (line.startsWith("tree "))
+                return ObjectId.fromHex(line.substring(5).trim());
+        }
+        throw new RuntimeException("Commit without tree: " + id.name());
+    }
+
+    public int generation(ObjectId id) {
+        int pos = graph == null ? -1 : graph.findPosition(id);
+        if (pos >= 0)
+            return graph.generation(pos);
+        Integer known = computedGenerations.get(id);
+        if (known != null)
+            return known;
+
+        // Same post-order as CommitGraph.write, stopping at covered commits.
+        Deque<ObjectId> stack = new ArrayDeque<>();
+        stack.push(id);
+        while (!stack.isEmpty()) {
+            ObjectId c = stack.peek();
+            if (computedGenerations.containsKey(c)) {
+                stack.pop();
+                continue;
+            }
+            int max = 0;
+            boolean ready = true;
+            for (ObjectId p : parents(c)) {
+                int ppos = graph == null ? -1 : graph.findPosition(p);
+                Integer g = ppos >= 0 ? Integer.valueOf(graph.generation(ppos)) : computedGenerations.get(p);
+                if (g == null) {
+                    stack.push(p);
+                    ready = false;
+                } else {
+                    max = Math.max(max, g);
+                }
+            }
+            if (ready) {
+                computedGenerations.put(c, max + 1);
+                stack.pop();
+            }
+        }
+        return computedGenerations.get(id);
+    }
+
+    private byte[] commitData(ObjectId id) {
+        ObjectStore.ParseObject po = store.parseObject(store.readObject(id));
+        if (!"commit".equals(po.type))
+            throw new RuntimeException("Not a commit: " + id.name());
+        return po.data;
+    }
+
+    /**
+     * A best common ancestor of {@code a} and {@code b}, or null if they
+     * share no history. Commits are painted from both sides in decreasing
+     * generation order, so every path into a commit is painted before it
+     * is taken; the first commit seen from both sides is a common ancestor
+     * that no other common ancestor descends from.
+     */
+    public ObjectId mergeBase(ObjectId a, ObjectId b) {
+        if (a.equals(b))
+            return a;
+
+        Map<ObjectId, Integer> flags = new HashMap<>();
+        PriorityQueue<Queued> queue = new PriorityQueue<>(
+                Comparator.comparingInt((Queued q) -> q.generation).reversed().thenComparing(q -> q.id));
+        flags.put(a, PARENT1);
+        flags.put(b, PARENT2);
+        queue.add(new Queued(a, generation(a)));
+        queue.add(new Queued(b, generation(b)));
+
+        while (!queue.isEmpty()) {
+            ObjectId c = queue.poll().id;
+            int f = flags.get(c);
+            if (f == (PARENT1 | PARENT2))
+                return c;
+            for (ObjectId p : parents(c)) {
+                int pf = flags.getOrDefault(p, 0);
+                if ((pf | f) == pf)
+                    continue;
+                flags.put(p, pf | f);
+                queue.add(new Queued(p, generation(p)));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * True if {@code target} is {@code from} or one of its ancestors. Commits
+     * with a generation at or below the target's (other than the target)
+     * cannot reach it and are not expanded.
+     */
+    public boolean isAncestor(ObjectId target, ObjectId from) {
+        int targetGeneration = generation(target);
+        ObjectIdSet visited = new ObjectIdSet();
+        Deque<ObjectId> stack = new ArrayDeque<>();
+        stack.push(from);
+        while (!stack.isEmpty()) {
+            ObjectId c = stack.pop();
+            if (c.equals(target))
+                return true;
+            if (!visited.add(c) || generation(c) <= targetGeneration)
+                continue;
+            for (ObjectId p : parents(c))
+                stack.push(p);
+        }
+        return false;
+    }
+
+    private static class Queued {
+        final ObjectId id;
+        final int generation;
+
+        Queued(ObjectId id, int generation) {
+            this.id = id;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.mygit.pack;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.mygit.util.Config;
+
+/**
+ * LRU cache of reconstructed delta bases, keyed by pack path and entry offset
+ * and bounded by {@code pack.deltaBaseCacheLimit} bytes. Reading many versions
+ * of one file resolves the shared part of their chains once instead of once
+ * per version. Shared by every open pack; packs are named after their
+ * content, so any {@link PackFile} on the same path can use an entry.
+ */
+class DeltaBaseCache {
+    private static final long DEFAULT_LIMIT = 16L * 1024 * 1024;
+
+    static final DeltaBaseCache SHARED = new DeltaBaseCache(
+            Config.getLong("pack.deltaBaseCacheLimit", DEFAULT_LIMIT));
+
+    private final long limit;
+    private final LinkedHashMap<Key, byte[]> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+
+    DeltaBaseCache(long limit) {
+        this.limit = limit;
+    }
+
+    synchronized byte[] get(PackFile pack, long offset) {
+        return entries.get(new Key(pack.path(), offset));
+    }
+
+    synchronized void put(PackFile pack, long offset, byte[] object) {
+        if (object.length > limit)
+            return;
+        byte[] old = entries.put(new Key(pack.path(), offset), object);
+        if (old != null)
+            bytes -= old.length;
+        bytes += object.length;
+
+        Iterator<byte[]> it = entries.values().iterator();
+        while (bytes > limit && it.hasNext()) {
+            bytes -= it.next().length;
+            it.remove();
+        }
+    }
+
+    synchronized void release(PackFile pack) {
+        Iterator<Map.Entry<Key, byte[]>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, byte[]> e = it.next();
+            if (e.getKey().pack.equals(pack.path())) {
+                bytes -= e.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    private static class Key {
+        final Path pack;
+        final long offset;
+
+        Key(Path pack, long offset) {
+            this.pack = pack;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return pack.equals(other.pack) && offset == other.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return pack.hashCode() * 31 + Long.hashCode(offset);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.mygit.pack;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.mygit.codec.CompressionPolicy;
+import com.mygit.codec.ZlibCodec;
+import com.mygit.pack.delta.DeltaEncoder;
+import com.mygit.pack.delta.DeltaSerializer;
+import com.mygit.storage.ObjectId;
+import com.mygit.storage.ObjectIdMap;
+import com.mygit.storage.ObjectIdSet;
+import com.mygit.storage.ObjectStore;
+import com.mygit.util.Config;
+import com.mygit.util.ThreadPool;
+
+/**
+ * Picks delta bases for a pack. Objects are ordered by type, path-name hash
+ * and size (largest first), so likely bases sit next to each other, and each
+ * blob is tried only against the {@code pack.deltaWindow} blobs before it,
+ * within {@code pack.deltaWindowMemory} bytes. The ordered list is cut into
+ * fixed-size segments searched independently on the worker pool; segment
+ * boundaries depend only on the input, so the pack is the same whatever the
+ * thread count.
+ */
+class DeltaSearch {
+    private static final long DEFAULT_WINDOW = 10;
+    private static final long DEFAULT_WINDOW_MEMORY = 64L * 1024 * 1024;
+    private static final long DEFAULT_MAX_DELTA_DEPTH = 50;
+    private static final int SEGMENT = 256;
+    private static final int MIN_DELTA_SIZE = 64;
+
+    private static final String[] TYPE_ORDER = { "commit", "tag", "tree", "blob" };
+    private static final int BLOB_RANK = 3;
+
+    private final ObjectStore store;
+    private final CompressionPolicy compression;
+    private final int window;
+    private final long windowMemory;
+    private final int maxDepth;
+
+    DeltaSearch(ObjectStore store, CompressionPolicy compression) {
+        this.store = store;
+        this.compression = compression;
+        this.window = (int) Config.getLong("pack.deltaWindow", DEFAULT_WINDOW);
+        this.windowMemory = Config.getLong("pack.deltaWindowMemory", DEFAULT_WINDOW_MEMORY);
+        this.maxDepth = (int) Config.getLong("pack.maxDeltaDepth", DEFAULT_MAX_DELTA_DEPTH);
+    }
+
+    /**
+     * Hash of a file name that sorts names with the same ending together
+     * (the last characters carry the most weight), as git's packer does.
+     */
+    static int nameHash(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isWhitespace(c))
+                continue;
+            hash = (hash >>> 2) + (c << 24);
+        }
+        return hash;
+    }
+
+    /**
+     * Returns {@code ids} in search order. {@code pathHashes} may be null.
+     * Entries already packed are marked for reuse: full objects as they are,
+     * deltas only if their base is reused too and the chain stays within
+     * {@code pack.maxDeltaDepth}. Everything else is compressed afresh.
+     */
+    List<ObjectToPack> order(ObjectIdSet ids, ObjectIdMap<Integer> pathHashes) {
+        PackManager packs = store.getPackManager();
+        List<ObjectToPack> objects = new ArrayList<>(ids.size());
+        ObjectIdMap<ObjectToPack> byId = new ObjectIdMap<>(ids.size());
+        for (ObjectId id : ids) {
+            Integer hash = pathHashes == null ? null : pathHashes.get(id);
+            ObjectToPack o = new ObjectToPack(id, hash == null ? 0 : hash);
+            o.reuse = packs.reusable(id);
+            if (o.reuse == null)
+                o.resolve(store.readHeader(id));
+            else if (o.reuse.deltaBase == null)
+                o.resolve(typeRank(o.reuse.type), o.reuse.size, 0);
+            objects.add(o);
+            byId.put(id, o);
+        }
+        for (ObjectToPack o : objects) {
+            if (!o.resolved)
+                resolveDelta(o, byId);
+        }
+
+        objects.sort(Comparator.<ObjectToPack>comparingInt(o -> o.typeRank)
+                .thenComparingInt(o -> o.pathHash)
+                .thenComparing(Comparator.<ObjectToPack>comparingLong(o -> o.size).reversed())
+                .thenComparing(o -> o.id));
+        return objects;
+    }
+
+    // Follows a reused delta down its chain to a resolved object, then
+    // resolves the chain on the way back. A chain that leaves the pack, hits
+    // an object that is not reused, is too deep or loops is recompressed.
+    private void resolveDelta(ObjectToPack o, ObjectIdMap<ObjectToPack> byId) {
+        Deque<ObjectToPack> chain = new ArrayDeque<>();
+        ObjectToPack cur = o;
+        while (cur != null && !cur.resolved && chain.size() <= maxDepth) {
+            chain.push(cur);
+            cur = byId.get(cur.reuse.deltaBase);
+        }
+
+        ObjectToPack base = cur != null && cur.resolved && cur.reuse != null ? cur : null;
+        while (!chain.isEmpty()) {
+            ObjectToPack c = chain.pop();
+            if (c.resolved)
+                continue;
+            if (base != null && base.depth < maxDepth) {
+                c.resolve(base.typeRank, c.reuse.size, base.depth + 1);
+                base = c;
+            } else {
+                c.reuse = null;
+                c.resolve(store.readHeader(c.id));
+                base = null;
+            }
+        }
+    }
+
+    /**
+     * Compresses {@code objects}, taken in search order, into pack entries:
+     * either the full object or a delta against an earlier blob of the same
+     * segment. Entries are handed to {@code sink} in order. At most
+     * {@code 2 * workers} segments are in flight, so memory stays bounded by
+     * the worker count and window size rather than the number of objects.
+     */
+    void compress(List<ObjectToPack> objects, EntrySink sink)
+            throws IOException, InterruptedException, ExecutionException {
+        ExecutorService pool = ThreadPool.get();
+        int maxInFlight = 2 * Runtime.getRuntime().availableProcessors();
+        Deque<Future<byte[][]>> inFlight = new ArrayDeque<>();
+        int next = 0;
+        int written = 0;
+        try {
+            while (next < objects.size() || !inFlight.isEmpty()) {
+                while (next < objects.size() && inFlight.size() < maxInFlight) {
+                    List<ObjectToPack> segment = objects.subList(next, Math.min(objects.size(), next + SEGMENT));
+                    inFlight.addLast(pool.submit(() -> compressSegment(segment)));
+                    next += segment.size();
+                }
+
+                byte[][] part = inFlight.removeFirst().get();
+                for (byte[] entry : part)
+                    sink.write(objects.get(written++).id, entry);
+            }
+        } finally {
+            for (Future<byte[][]> f : inFlight)
+                f.cancel(true);
+        }
+    }
+
+    private byte[][] compressSegment(List<ObjectToPack> segment) {
+        PackManager packs = store.getPackManager();
+        byte[][] entries = new byte[segment.size()][];
+        ArrayDeque<Base> bases = new ArrayDeque<>();
+        long baseBytes = 0;
+
+        for (int i = 0; i < segment.size(); i++) {
+            ObjectToPack o = segment.get(i);
+            boolean blob = o.typeRank == BLOB_RANK;
+            int depth = o.depth;
+            byte[] data = null;
+
+            if (o.reuse != null) {
+                entries[i] = packs.readReusable(o.reuse);
+            } else {
+                byte[] stored = store.readObject(o.id);
+                ObjectStore.ParseObject po = store.parseObject(stored);
+                data = po.data;
+
+                int level = compression.levelFor(po.type, po.data, 0, po.data.length);
+                byte[] entry = ZlibCodec.deflate(stored, level);
+
+                if (blob && po.data.length >= MIN_DELTA_SIZE) {
+                    byte[] delta = null;
+                    int deltaDepth = 0;
+
+                    // Nearest neighbours first; a later base must be strictly
+                    // smaller to win, which keeps the choice deterministic.
+                    Iterator<Base> it = bases.descendingIterator();
+                    while (it.hasNext()) {
+                        Base b = it.next();
+                        if (b.depth >= maxDepth)
+                            continue;
+                        byte[] baseData = b.data();
+                        byte[] d = DeltaSerializer.serialize(b.id, baseData.length,
+                                DeltaEncoder.encode(baseData, po.data));
+                        if (d.length < (delta == null ? po.data.length / 2 : delta.length)) {
+                            delta = d;
+                            deltaDepth = b.depth + 1;
+                        }
+                    }
+
+                    if (delta != null) {
+                        byte[] payload = new byte[PackManager.DELTA_PREFIX.length + delta.length];
+                        System.arraycopy(PackManager.DELTA_PREFIX, 0, payload, 0, PackManager.DELTA_PREFIX.length);
+                        System.arraycopy(delta, 0, payload, PackManager.DELTA_PREFIX.length, delta.length);
+                        byte[] compressed = ZlibCodec.deflate(payload, compression.levelFor("blob"));
+                        if (compressed.length < entry.length) {
+                            entry = compressed;
+                            depth = deltaDepth;
+                        }
+                    }
+                }
+                entries[i] = entry;
+            }
+
+            // Reused blobs are only inflated if a later blob needs them.
+            if (blob && o.size >= MIN_DELTA_SIZE) {
+                bases.addLast(new Base(o.id, o.size, depth, data));
+                baseBytes += o.size;
+                while (!bases.isEmpty() && (bases.size() > window || baseBytes > windowMemory))
+                    baseBytes -= bases.removeFirst().size;
+            }
+        }
+        return entries;
+    }
+
+    private static int typeRank(String type) {
+        for (int i = 0; i < TYPE_ORDER.length; i++) {
+            if (TYPE_ORDER[i].equals(type))
+                return i;
+        }
+        return TYPE_ORDER.length;
+    }
+
+    interface EntrySink {
+        void write(ObjectId id, byte[] entry) throws IOException;
+    }
+
+    static class ObjectToPack {
+        final ObjectId id;
+        final int pathHash;
+        PackManager.ReusableEntry reuse;
+        boolean resolved;
+        int typeRank;
+        long size;
+        int depth;
+
+        ObjectToPack(ObjectId id, int pathHash) {
+            this.id = id;
+            this.pathHash = pathHash;
+        }
+
+        void resolve(ObjectStore.ObjectHeader header) {
+            resolve(typeRank(header.type), header.size, 0);
+        }
+
+        void resolve(int typeRank, long size, int depth) {
+            this.typeRank = typeRank;
+            this.size = size;
+            this.depth = depth;
+            this.resolved = true;
+        }
+    }
+
+    /** A window entry; the data of a reused entry is read on first use. */
+    private class Base {
+        final ObjectId id;
+        final long size;
+        final int depth;
+        private byte[] data;
+
+        Base(ObjectId id, long size, int depth, byte[] data) {
+            this.id = id;
+            this.size = size;
+            this.depth = depth;
+            this.data = data;
+        }
+
+        byte[] data() {
+            if (data == null)
+                data = store.parseObject(store.readObject(id)).data;
+            return data;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.mygit.pack;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Word-aligned hybrid (EWAH) compressed bitmap over 64-bit words. The
+ * encoding is a sequence of marker words, each followed by literal words.
+ * A marker holds the running bit (bit 0), the number of clean words of that
+ * bit that come first (bits 1-32) and the number of literal words after it
+ * (bits 33-63). Long runs of reachable or unreachable objects cost one word.
+ */
+public class EwahBitmap {
+    private static final long MAX_RUN = 0xFFFFFFFFL;
+    private static final long MAX_LITERALS = 0x7FFFFFFFL;
+
+    private final int sizeInBits;
+    private final long[] words;
+
+    private EwahBitmap(int sizeInBits, long[] words) {
+        this.sizeInBits = sizeInBits;
+        this.words = words;
+    }
+
+    /** Compresses the plain bitmap {@code bits} of {@code sizeInBits} bits. */
+    public static EwahBitmap compress(long[] bits, int sizeInBits) {
+        long[] out = new long[Math.max(4, bits.length / 4)];
+        int n = 0;
+        int i = 0;
+        while (i < bits.length) {
+            boolean runBit = bits[i] == -1L;
+            long clean = runBit ? -1L : 0L;
+            long run = 0;
+            while (i < bits.length && bits[i] == clean && run < MAX_RUN) {
+                run++;
+                i++;
+            }
+            int literalStart = i;
+            while (i < bits.length && bits[i] != 0 && bits[i] != -1L && i - literalStart < MAX_LITERALS)
+                i++;
+            int literals = i - literalStart;
+
+            if (n + 1 + literals > out.length)
+                out = Arrays.copyOf(out, Math.max(out.length * 2, n + 1 + literals));
+            out[n++] = (runBit ? 1L : 0L) | run << 1 | (long) literals << 33;
+            System.arraycopy(bits, literalStart, out, n, literals);
+            n += literals;
+        }
+        return new EwahBitmap(sizeInBits, Arrays.copyOf(out, n));
+    }
+
+    public int sizeInBits() {
+        return sizeInBits;
+    }
+
+    /** ORs this bitmap into the plain bitmap {@code dst}. */
+    public void orInto(long[] dst) {
+        int pos = 0;
+        int i = 0;
+        while (i < words.length) {
+            long marker = words[i++];
+            int run = (int) ((marker >>> 1) & MAX_RUN);
+            int literals = (int) (marker >>> 33);
+            if ((marker & 1) != 0)
+                Arrays.fill(dst, pos, pos + run, -1L);
+            pos += run;
+            for (int k = 0; k < literals; k++)
+                dst[pos++] |= words[i++];
+        }
+    }
+
+    /** Bytes taken by {@link #writeTo}. */
+    public int encodedLength() {
+        return 8 + words.length * 8;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(sizeInBits);
+        out.writeInt(words.length);
+        for (long w : words)
+            out.writeLong(w);
+    }
+
+    /** Reads a bitmap written by {@link #writeTo} at {@code pos} of {@code buf}. */
+    public static EwahBitmap read(ByteBuffer buf, int pos) {
+        int sizeInBits = buf.getInt(pos);
+        int count = buf.getInt(pos + 4);
+        if (sizeInBits < 0 || count < 0 || pos + 8 + (long) count * 8 > buf.limit())
+            throw new RuntimeException("Invalid bitmap");
+        long[] words = new long[count];
+        for (int i = 0; i < count; i++)
+            words[i] = buf.getLong(pos + 8 + i * 8);
+        return new EwahBitmap(sizeInBits, words);
+    }
+
+    /** Words needed for a plain bitmap of {@code sizeInBits} bits. */
+    public static int plainWords(int sizeInBits) {
+        return (sizeInBits + 63) >>> 6;
+    }
+}
@@ -0,0 +1,114 @@
+package com.mygit.pack;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.mygit.storage.AbbreviatedObjectId;
+import com.mygit.storage.ObjectId;
+import com.mygit.storage.ObjectIdSet;
+
+/**
+ * A 256-entry fan-out table followed by sorted 20-byte ids, read in place
+ * from a (usually mapped) buffer. fan-out[b] is the number of ids whose first
+ * byte is at most b, so a lookup only binary-searches ids sharing its first
+ * byte. Shared by the pack index and the multi-pack index.
+ */
+class IdTable {
+    static final int FANOUT_SIZE = 256 * 4;
+
+    private final ByteBuffer buf;
+    private final int fanoutStart;
+    private final int idsStart;
+    private final int count;
+
+    IdTable(ByteBuffer buf, int fanoutStart) {
+        this.buf = buf;
+        this.fanoutStart = fanoutStart;
+        this.idsStart = fanoutStart + FANOUT_SIZE;
+        this.count = buf.getInt(fanoutStart + 255 * 4);
+    }
+
+    /** Writes the fan-out table and ids; {@code ids} must be sorted. */
+    static void write(DataOutputStream out, List<ObjectId> ids) throws IOException {
+        int[] fanout = new int[256];
+        for (ObjectId id : ids)
+            fanout[id.firstByte()]++;
+        for (int i = 1; i < 256; i++)
+            fanout[i] += fanout[i - 1];
+
+        for (int f : fanout)
+            out.writeInt(f);
+        for (ObjectId id : ids)
+            out.write(id.toByteArray());
+    }
+
+    int size() {
+        return count;
+    }
+
+    /** Offset just past the id table. */
+    int end() {
+        return idsStart + count * ObjectId.RAW_LENGTH;
+    }
+
+    ObjectId objectId(int pos) {
+        byte[] raw = new byte[ObjectId.RAW_LENGTH];
+        buf.get(idsStart + pos * ObjectId.RAW_LENGTH, raw);
+        return ObjectId.fromRaw(raw);
+    }
+
+    /** Position of {@code id}, or -1. */
+    int findPosition(ObjectId id) {
+        int b = id.firstByte();
+        int lo = b == 0 ? 0 : fanout(b - 1);
+        int hi = fanout(b);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareAt(mid, id);
+            if (c < 0)
+                lo = mid + 1;
+            else if (c > 0)
+                hi = mid;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    void findByPrefix(AbbreviatedObjectId prefix, ObjectIdSet out, int limit) {
+        int b = prefix.firstByte();
+        int lo = b == 0 ? 0 : fanout(b - 1);
+        int hi = fanout(b);
+
+        // Binary search for the first id not sorting before the prefix.
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (prefix.prefixCompare(objectId(mid)) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        for (int i = lo; i < count && out.size() < limit; i++) {
+            ObjectId id = objectId(i);
+            if (prefix.prefixCompare(id) != 0)
+                break;
+            out.add(id);
+        }
+    }
+
+    private int fanout(int b) {
+        return buf.getInt(fanoutStart + b * 4);
+    }
+
+    private int compareAt(int pos, ObjectId id) {
+        int p = idsStart + pos * ObjectId.RAW_LENGTH;
+        for (int w = 0; w < 5; w++) {
+            int c = Integer.compareUnsigned(buf.getInt(p + w * 4), id.word(w));
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+}
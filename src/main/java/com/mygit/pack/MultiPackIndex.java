@@ -0,0 +1,300 @@
+package com.mygit.pack;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.mygit.storage.AbbreviatedObjectId;
+import com.mygit.storage.ObjectId;
+import com.mygit.storage.ObjectIdSet;
+
+/**
+ * One index over every pack in {@code objects/pack}, so a lookup is a single
+ * binary search however many packs there are. Layout:
+ *
+ * <pre>
+ * "MIDX" | int version | int pack count | pack names (UTF)
+ *        | int[256] fan-out | count x 20-byte id (sorted)
+ *        | count x int pack number | count x long offset
+ * </pre>
+ *
+ * Packs written after the file are simply not covered; {@link PackManager}
+ * searches those on their own. {@link #update} rewrites the file after packs
+ * are added or removed, reusing the entries of packs it already covers.
+ */
+public class MultiPackIndex {
+    static final String FILE_NAME = "multi-pack-index";
+    private static final int VERSION = 1;
+
+    private final ByteBuffer buf;
+    private final List<String> packNames;
+    private final IdTable ids;
+    private final int packsStart;
+    private final int offsetsStart;
+
+    private MultiPackIndex(ByteBuffer buf) {
+        // 0x4D494458 is "MIDX".
+        if (buf.limit() < 12 || buf.getInt(0) != 0x4D494458 || buf.getInt(4) != VERSION)
+            throw new RuntimeException("Invalid multi-pack index");
+
+        int packCount = buf.getInt(8);
+        List<String> names = new ArrayList<>(packCount);
+        int pos = 12;
+        for (int i = 0; i < packCount; i++) {
+            int len = buf.getShort(pos) & 0xFFFF;
+            byte[] name = new byte[len];
+            buf.get(pos + 2, name);
+            names.add(new String(name));
+            pos += 2 + len;
+        }
+
+        this.buf = buf;
+        this.packNames = Collections.unmodifiableList(names);
+        this.ids = new IdTable(buf, pos);
+        this.packsStart = ids.end();
+        this.offsetsStart = packsStart + ids.size() * 4;
+        if (buf.limit() != offsetsStart + ids.size() * 8)
+            throw new RuntimeException("Invalid multi-pack index");
+    }
+
+    /**
+     * Opens the multi-pack index in {@code packDir}. Returns null if there is
+     * none, it is corrupt, or it lists a pack that no longer exists.
+     */
+    public static MultiPackIndex open(Path packDir) {
+        MultiPackIndex midx = read(packDir);
+        if (midx == null)
+            return null;
+        for (String name : midx.packNames) {
+            if (!packExists(packDir, name))
+                return null;
+        }
+        return midx;
+    }
+
+    private static MultiPackIndex read(Path packDir) {
+        Path file = packDir.resolve(FILE_NAME);
+        if (!Files.exists(file))
+            return null;
+        // Read rather than mapped: update() replaces this file while the
+        // index is in use, which a live mapping prevents on Windows.
+        try {
+            return new MultiPackIndex(ByteBuffer.wrap(Files.readAllBytes(file)));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public List<String> packNames() {
+        return packNames;
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    /** Position of {@code id}, or -1 if no covered pack has it. */
+    public int findPosition(ObjectId id) {
+        return ids.findPosition(id);
+    }
+
+    public ObjectId objectId(int pos) {
+        return ids.objectId(pos);
+    }
+
+    /** Index into {@link #packNames()} of the pack holding the object at {@code pos}. */
+    public int packAt(int pos) {
+        return buf.getInt(packsStart + pos * 4);
+    }
+
+    public long offsetAt(int pos) {
+        return buf.getLong(offsetsStart + pos * 8);
+    }
+
+    public void findByPrefix(AbbreviatedObjectId prefix, ObjectIdSet out, int limit) {
+        ids.findByPrefix(prefix, out, limit);
+    }
+
+    /**
+     * Rewrites the multi-pack index to cover exactly the packs now in
+     * {@code packDir}. When packs were only added, the old file's entries are
+     * copied and just the new packs' indexes are read. Sources are already
+     * sorted, so they are merged rather than re-sorted.
+     */
+    public static void update(Path packDir) {
+        try {
+            List<String> present = listPacks(packDir);
+            Path file = packDir.resolve(FILE_NAME);
+            if (present.isEmpty()) {
+                Files.deleteIfExists(file);
+                return;
+            }
+
+            // The old file keeps one entry per object, so after a pack is
+            // removed its objects may only be findable in the other packs'
+            // own indexes: reuse it only when packs were just added.
+            MultiPackIndex old = read(packDir);
+            if (old != null && !present.containsAll(old.packNames))
+                old = null;
+
+            List<String> names = new ArrayList<>();
+            List<Cursor> sources = new ArrayList<>();
+            if (old != null) {
+                names.addAll(old.packNames);
+                sources.add(new MidxCursor(old, 0));
+            }
+
+            for (String name : present) {
+                if (names.contains(name))
+                    continue;
+                PackIndex index = new PackIndex(packDir.resolve(name + ".idx"));
+                sources.add(new IndexCursor(index, names.size(), sources.size()));
+                names.add(name);
+            }
+
+            List<ObjectId> ids = new ArrayList<>();
+            List<Integer> packs = new ArrayList<>();
+            List<Long> offsets = new ArrayList<>();
+            merge(sources, ids, packs, offsets);
+
+            Path tmp = packDir.resolve(".tmp-" + UUID.randomUUID() + "-" + FILE_NAME);
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW)))) {
+                    out.write("MIDX".getBytes());
+                    out.writeInt(VERSION);
+                    out.writeInt(names.size());
+                    for (String name : names) {
+                        byte[] b = name.getBytes();
+                        out.writeShort(b.length);
+                        out.write(b);
+                    }
+                    IdTable.write(out, ids);
+                    for (int p : packs)
+                        out.writeInt(p);
+                    for (long o : offsets)
+                        out.writeLong(o);
+                }
+                try {
+                    Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write multi-pack index", e);
+        }
+    }
+
+    /** Base names ("pack-...") of packs that have both a .pack and an .idx. */
+    static List<String> listPacks(Path packDir) throws IOException {
+        if (!Files.isDirectory(packDir))
+            return new ArrayList<>();
+        try (Stream<Path> files = Files.list(packDir)) {
+            return files
+                    .map(p -> p.getFileName().toString())
+                    .filter(n -> n.endsWith(".idx"))
+                    .map(n -> n.substring(0, n.length() - 4))
+                    .filter(n -> packExists(packDir, n))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static boolean packExists(Path packDir, String name) {
+        return Files.exists(packDir.resolve(name + ".pack")) && Files.exists(packDir.resolve(name + ".idx"));
+    }
+
+    private static void merge(List<Cursor> sources, List<ObjectId> ids, List<Integer> packs, List<Long> offsets) {
+        PriorityQueue<Cursor> queue = new PriorityQueue<>((a, b) -> {
+            int c = a.id.compareTo(b.id);
+            return c != 0 ? c : Integer.compare(a.order, b.order);
+        });
+        for (Cursor c : sources) {
+            if (c.next())
+                queue.add(c);
+        }
+
+        ObjectId last = null;
+        while (!queue.isEmpty()) {
+            Cursor c = queue.poll();
+            // An object in several packs keeps the entry from the earliest source.
+            if (!c.id.equals(last)) {
+                ids.add(c.id);
+                packs.add(c.pack);
+                offsets.add(c.offset);
+                last = c.id;
+            }
+            if (c.next())
+                queue.add(c);
+        }
+    }
+
+    private abstract static class Cursor {
+        final int order;
+        ObjectId id;
+        int pack;
+        long offset;
+
+        Cursor(int order) {
+            this.order = order;
+        }
+
+        abstract boolean next();
+    }
+
+    private static class MidxCursor extends Cursor {
+        private final MultiPackIndex midx;
+        private int pos = -1;
+
+        MidxCursor(MultiPackIndex midx, int order) {
+            super(order);
+            this.midx = midx;
+        }
+
+        @Override
+        boolean next() {
+            if (++pos >= midx.size())
+                return false;
+            id = midx.objectId(pos);
+            pack = midx.packAt(pos);
+            offset = midx.offsetAt(pos);
+            return true;
+        }
+    }
+
+    private static class IndexCursor extends Cursor {
+        private final PackIndex index;
+        private int pos = -1;
+
+        IndexCursor(PackIndex index, int pack, int order) {
+            super(order);
+            this.index = index;
+            this.pack = pack;
+        }
+
+        @Override
+        boolean next() {
+            if (++pos >= index.size())
+                return false;
+            id = index.objectId(pos);
+            offset = index.offset(pos);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.mygit.pack;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import com.mygit.storage.ObjectId;
+import com.mygit.storage.ObjectIdMap;
+import com.mygit.storage.ObjectIdSet;
+import com.mygit.storage.ObjectStore;
+import com.mygit.storage.TreeReader;
+import com.mygit.storage.TreeReader.TreeEntry;
+import com.mygit.util.ThreadPool;
+
+/**
+ * Finds every object reachable from a set of commits. Commits are walked
+ * with an explicit stack on the calling thread; their trees are then walked
+ * as fork-join tasks, one per tree. A worker claims a subtree by adding it
+ * to a shared concurrent set before forking it, so each tree is read exactly
+ * once however many commits and workers reach it. History length does not
+ * grow the call stack; tree depth does, by a few frames per level, since a
+ * task runs one of its subtrees on its own thread.
+ */
+public class ObjectWalk {
+    private static final long PROGRESS_INTERVAL = 1000;
+
+    /** Called with the number of objects found so far, possibly from several threads. */
+    public interface ProgressMonitor {
+        void update(long found);
+    }
+
+    private final ObjectStore store;
+    private final TreeReader tr;
+    private Set<String> types;
+    private Predicate<ObjectId> skip = id -> false;
+    private ProgressMonitor progress;
+
+    private final Set<ObjectId> seen = ConcurrentHashMap.newKeySet();
+    private final Set<ObjectId> found = ConcurrentHashMap.newKeySet();
+    private final Map<ObjectId, Integer> blobNames = new ConcurrentHashMap<>();
+    private final AtomicLong count = new AtomicLong();
+
+    public ObjectWalk(ObjectStore store) {
+        this.store = store;
+        this.tr = new TreeReader(store);
+    }
+
+    /** Reports only objects of the given types ("commit", "tree", "blob"); all are still walked. */
+    public ObjectWalk types(String... types) {
+        this.types = new HashSet<>(Arrays.asList(types));
+        return this;
+    }
+
+    /**
+     * Objects for which {@code skip} is true are neither reported nor walked
+     * into. It is called for every commit, on the calling thread, before it
+     * is called for any tree or blob, which may happen on worker threads.
+     */
+    public ObjectWalk skip(Predicate<ObjectId> skip) {
+        this.skip = skip;
+        return this;
+    }
+
+    public ObjectWalk progress(ProgressMonitor progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /**
+     * Walks everything reachable from {@code tips} and returns the objects
+     * of the requested types. Commits that cannot be read are reported but
+     * not walked through. Each ObjectWalk is good for one walk.
+     */
+    public ObjectIdSet walk(Collection<ObjectId> tips) {
+        CommitLookup commits = new CommitLookup(store);
+        List<ObjectId> roots = new ArrayList<>();
+        Deque<ObjectId> stack = new ArrayDeque<>(tips);
+        while (!stack.isEmpty()) {
+            ObjectId c = stack.pop();
+            if (!seen.add(c) || skip.test(c))
+                continue;
+            found("commit", c);
+            try {
+                roots.add(commits.tree(c));
+                for (ObjectId p : commits.parents(c))
+                    stack.push(p);
+            } catch (Exception e) {
+            }
+        }
+
+        List<TreeWalk> tasks = new ArrayList<>(roots.size());
+        for (ObjectId tree : roots) {
+            if (!skip.test(tree) && seen.add(tree))
+                tasks.add(new TreeWalk(tree));
+        }
+        try {
+            ThreadPool.forkJoin().invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Failed to walk trees", e);
+        }
+
+        ObjectIdSet out = new ObjectIdSet(found.size());
+        for (ObjectId id : found)
+            out.add(id);
+        return out;
+    }
+
+    /**
+     * Name hash of a path each blob reached by the last {@link #walk} was
+     * found at. Where a blob has several, the smallest hash is kept, so the
+     * result does not depend on which worker got there first.
+     */
+    public ObjectIdMap<Integer> pathHashes() {
+        ObjectIdMap<Integer> out = new ObjectIdMap<>(blobNames.size());
+        blobNames.forEach(out::put);
+        return out;
+    }
+
+    private void found(String type, ObjectId id) {
+        if (types == null || types.contains(type))
+            found.add(id);
+        long n = count.incrementAndGet();
+        if (progress != null && n % PROGRESS_INTERVAL == 0)
+            progress.update(n);
+    }
+
+    /** Reads one claimed tree and forks its unclaimed subtrees. */
+    private class TreeWalk extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ObjectId treeId;
+
+        TreeWalk(ObjectId treeId) {
+            this.treeId = treeId;
+        }
+
+        @Override
+        protected void compute() {
+            found("tree", treeId);
+            List<TreeWalk> subtrees = new ArrayList<>();
+            for (TreeEntry e : tr.readTree(treeId)) {
+                if (skip.test(e.id))
+                    continue;
+                if (e.isTree()) {
+                    if (seen.add(e.id))
+                        subtrees.add(new TreeWalk(e.id));
+                } else {
+                    blobNames.merge(e.id, DeltaSearch.nameHash(e.name), Math::min);
+                    if (seen.add(e.id))
+                        found("blob", e.id);
+                }
+            }
+            invokeAll(subtrees);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.mygit.pack;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+
+import com.mygit.storage.ObjectId;
+import com.mygit.storage.ObjectIdMap;
+import com.mygit.storage.ObjectIdSet;
+import com.mygit.storage.ObjectStore;
+import com.mygit.storage.TreeReader;
+import com.mygit.storage.TreeReader.TreeEntry;
+import com.mygit.util.Config;
+
+/**
+ * Reachability bitmaps for one pack ({@code pack-<name>.bitmap}). Bit i
+ * stands for the object at position i of the pack index; the bitmap of a
+ * selected commit has a bit set for every object reachable from it. Only
+ * commits whose whole history is in the pack get one, so a bitmap is never
+ * partial. A name-hash table keeps the path each object was found at, so
+ * delta ordering survives objects that were never walked. Layout:
+ *
+ * <pre>
+ * "BITM" | int version | int object count | int commit count
+ *        | object count x int name hash
+ *        | commit count x (20-byte commit id | EWAH bitmap)
+ * </pre>
+ */
+public class PackBitmap {
+    public static final String EXTENSION = ".bitmap";
+
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+    private static final long DEFAULT_INTERVAL = 100;
+
+    private final PackIndex index;
+    private final ByteBuffer buf;
+    private final ObjectIdMap<Integer> bitmaps;
+
+    private PackBitmap(PackIndex index, ByteBuffer buf) {
+        // 0x4249544D is "BITM".
+        if (buf.limit() < HEADER || buf.getInt(0) != 0x4249544D || buf.getInt(4) != VERSION
+                || buf.getInt(8) != index.size())
+            throw new RuntimeException("Invalid bitmap index");
+
+        this.index = index;
+        this.buf = buf;
+        int commits = buf.getInt(12);
+        this.bitmaps = new ObjectIdMap<>(commits);
+        int at = HEADER + index.size() * 4;
+        byte[] raw = new byte[ObjectId.RAW_LENGTH];
+        for (int i = 0; i < commits; i++) {
+            buf.get(at, raw);
+            at += ObjectId.RAW_LENGTH;
+            bitmaps.put(ObjectId.fromRaw(raw), at);
+            at += 8 + buf.getInt(at + 4) * 8;
+        }
+        if (at != buf.limit())
+            throw new RuntimeException("Invalid bitmap index");
+    }
+
+    /** Opens the bitmaps of {@code pack}, or returns null if it has none or they are corrupt. */
+    public static PackBitmap open(Path packDir, PackManager.PackBundle pack) {
+        Path file = packDir.resolve(pack.name + EXTENSION);
+        if (!Files.exists(file))
+            return null;
+        // Read rather than mapped: gc rewrites and deletes bitmap files
+        // while they are in use, which a live mapping prevents on Windows.
+        try {
+            return new PackBitmap(pack.index, ByteBuffer.wrap(Files.readAllBytes(file)));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public PackIndex index() {
+        return index;
+    }
+
+    /** Objects reachable from {@code commit}, or null if it has no bitmap. */
+    public EwahBitmap bitmapFor(ObjectId commit) {
+        Integer at = bitmaps.get(commit);
+        return at == null ? null : EwahBitmap.read(buf, at);
+    }
+
+    /** Name hash of the object at {@code pos}, 0 if it had no path. */
+    public int nameHash(int pos) {
+        return buf.getInt(HEADER + pos * 4);
+    }
+
+    /**
+     * Writes the bitmaps of {@code packName}, whose index is {@code index}:
+     * one for every tip and for every {@code pack.bitmapInterval}th commit
+     * counting back from the newest, so reaching a covered commit from an
+     * old tip is a short walk. Selected commits are built oldest first and
+     * each one starts from the bitmaps of the selected commits it reaches,
+     * walking only what they do not cover. Returns the number of bitmaps.
+     */
+    public static int write(Path packDir, String packName, PackIndex index, ObjectStore store,
+            Collection<ObjectId> tips, ObjectIdMap<Integer> pathHashes) {
+        CommitLookup commits = new CommitLookup(store);
+        List<ObjectId> all = new ArrayList<>();
+        ObjectIdSet seen = new ObjectIdSet();
+        Deque<ObjectId> stack = new ArrayDeque<>(tips);
+        while (!stack.isEmpty()) {
+            ObjectId c = stack.pop();
+            if (!seen.add(c) || index.findPosition(c) < 0)
+                continue;
+            all.add(c);
+            for (ObjectId p : commits.parents(c))
+                stack.push(p);
+        }
+
+        // Oldest first, so every selected ancestor is built before use.
+        ObjectIdMap<Integer> generations = new ObjectIdMap<>(all.size());
+        for (ObjectId c : all)
+            generations.put(c, commits.generation(c));
+        all.sort(Comparator.<ObjectId>comparingInt(generations::get).thenComparing(c -> c));
+
+        long interval = Math.max(1, Config.getLong("pack.bitmapInterval", DEFAULT_INTERVAL));
+        ObjectIdSet tipSet = new ObjectIdSet();
+        for (ObjectId t : tips)
+            tipSet.add(t);
+
+        TreeReader trees = new TreeReader(store);
+        ObjectIdMap<EwahBitmap> built = new ObjectIdMap<>();
+        List<ObjectId> order = new ArrayList<>();
+        for (int i = 0; i < all.size(); i++) {
+            ObjectId c = all.get(i);
+            if (!tipSet.contains(c) && (all.size() - 1 - i) % interval != 0)
+                continue;
+            long[] bits = build(c, index, commits, trees, built);
+            if (bits != null) {
+                built.put(c, EwahBitmap.compress(bits, index.size()));
+                order.add(c);
+            }
+        }
+
+        Path file = packDir.resolve(packName + EXTENSION);
+        Path tmp = packDir.resolve(".tmp-" + UUID.randomUUID() + EXTENSION);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW)))) {
+                out.write("BITM".getBytes());
+                out.writeInt(VERSION);
+                out.writeInt(index.size());
+                out.writeInt(order.size());
+                for (int pos = 0; pos < index.size(); pos++) {
+                    Integer hash = pathHashes == null ? null : pathHashes.get(index.objectId(pos));
+                    out.writeInt(hash == null ? 0 : hash);
+                }
+                for (ObjectId c : order) {
+                    out.write(c.toByteArray());
+                    built.get(c).writeTo(out);
+                }
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return order.size();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write bitmap index", e);
+        } finally {
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Plain bitmap of everything reachable from the commit, or null if some
+    // of it is not in the pack. A set bit for a tree means its whole subtree
+    // is set, so set trees are never entered again.
+    private static long[] build(ObjectId commit, PackIndex index, CommitLookup commits, TreeReader trees,
+            ObjectIdMap<EwahBitmap> built) {
+        long[] bits = new long[EwahBitmap.plainWords(index.size())];
+        List<ObjectId> roots = new ArrayList<>();
+        ObjectIdSet seen = new ObjectIdSet();
+        Deque<ObjectId> stack = new ArrayDeque<>();
+        stack.push(commit);
+        while (!stack.isEmpty()) {
+            ObjectId c = stack.pop();
+            if (!seen.add(c))
+                continue;
+            EwahBitmap b = c.equals(commit) ? null : built.get(c);
+            if (b != null) {
+                b.orInto(bits);
+                continue;
+            }
+            int pos = index.findPosition(c);
+            if (pos < 0)
+                return null;
+            if (isSet(bits, pos))
+                continue;
+            set(bits, pos);
+            roots.add(commits.tree(c));
+            for (ObjectId p : commits.parents(c))
+                stack.push(p);
+        }
+
+        Deque<ObjectId> pending = new ArrayDeque<>(roots);
+        while (!pending.isEmpty()) {
+            ObjectId tree = pending.pop();
+            int pos = index.findPosition(tree);
+            if (pos < 0)
+                return null;
+            if (isSet(bits, pos))
+                continue;
+            set(bits, pos);
+            for (TreeEntry e : trees.readTree(tree)) {
+                if (e.isTree()) {
+                    pending.push(e.id);
+                } else {
+                    int blob = index.findPosition(e.id);
+                    if (blob < 0)
+                        return null;
+                    set(bits, blob);
+                }
+            }
+        }
+        return bits;
+    }
+
+    static boolean isSet(long[] bits, int pos) {
+        return (bits[pos >>> 6] & 1L << pos) != 0;
+    }
+
+    static void set(long[] bits, int pos) {
+        bits[pos >>> 6] |= 1L << pos;
+    }
+}
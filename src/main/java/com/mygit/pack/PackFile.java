@@ -1,36 +1,176 @@
 package com.mygit.pack;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.InflaterInputStream;
 
-import com.mygit.util.IOUtils;
+import com.mygit.codec.ZlibCodec;
+import com.mygit.storage.ObjectStore;
 
+/**
+ * A pack file held open for the life of its {@link PackManager}. Reads go
+ * through the shared {@link WindowCache} of cached regions; entries larger
+ * than a window are read with positional channel reads instead, so a big
+ * blob does not flush the cache. All reads are positional and thread-safe.
+ */
 public class PackFile {
     private final Path packPath;
+    private final WindowCache windows = WindowCache.SHARED;
+
+    private volatile FileChannel channel;
+    private long fileSize;
 
     public PackFile(Path packPath) {
-        this.packPath = packPath;
+        this.packPath = packPath.toAbsolutePath().normalize();
+    }
+
+    /** Absolute, normalized path of the pack file. */
+    public Path path() {
+        return packPath;
     }
 
     public byte[] readObjectAt(long offset) {
-        try (InputStream in = Files.newInputStream(packPath)) {
-            in.skip(offset);
+        try {
+            int len = readInt(offset + 20);
+            byte[] compressed = new byte[len];
+            read(offset + 24, compressed, 0, len);
 
-            byte[] sha = in.readNBytes(20);
-            int len = readInt(in);
-            byte[] compressed = in.readNBytes(len);
+            return ZlibCodec.inflateObject(compressed);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to read object", e);
+        }
+    }
+
+    /**
+     * Inflates only the start of the entry at {@code offset} and returns its
+     * header, or null if the entry is a delta.
+     */
+    public ObjectStore.ObjectHeader readHeaderAt(long offset) {
+        try {
+            int len = readInt(offset + 20);
+            try (InputStream inflated = new InflaterInputStream(
+                    new EntryStream(offset + 24, len), ZlibCodec.inflater(), 64)) {
+                return ObjectStore.parseHeader(inflated);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to read object header", e);
+        }
+    }
 
-            return IOUtils.zlibDecompress(compressed);
+    /** The entry's compressed bytes as stored, for copying into another pack. */
+    public byte[] readRawAt(long offset) {
+        try {
+            int len = readInt(offset + 20);
+            byte[] compressed = new byte[len];
+            read(offset + 24, compressed, 0, len);
+            return compressed;
         } catch (Exception e) {
             throw new RuntimeException("Failed to read object", e);
         }
     }
 
-    private int readInt(InputStream in) throws Exception {
-        return (in.read() << 24)
-                | (in.read() << 16)
-                | (in.read() << 8)
-                | in.read();
+    /** Inflates at most the first {@code max} bytes of the entry at {@code offset}. */
+    public byte[] readPrefixAt(long offset, int max) {
+        try {
+            int len = readInt(offset + 20);
+            try (InputStream inflated = new InflaterInputStream(
+                    new EntryStream(offset + 24, len), ZlibCodec.inflater(), 64)) {
+                return inflated.readNBytes(max);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to read object header", e);
+        }
+    }
+
+    public synchronized void close() {
+        windows.release(this);
+        DeltaBaseCache.SHARED.release(this);
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null) {
+            synchronized (this) {
+                ch = channel;
+                if (ch == null) {
+                    ch = FileChannel.open(packPath, StandardOpenOption.READ);
+                    fileSize = ch.size();
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    private void read(long pos, byte[] dst, int off, int len) throws IOException {
+        FileChannel ch = channel();
+        if (pos + len > fileSize)
+            throw new IOException("Read past end of pack: " + packPath);
+
+        if (len > windows.windowSize) {
+            ByteBuffer buf = ByteBuffer.wrap(dst, off, len);
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, pos + buf.position() - off) < 0)
+                    throw new IOException("Unexpected end of pack: " + packPath);
+            }
+            return;
+        }
+
+        while (len > 0) {
+            ByteBuffer w = windows.window(this, ch, fileSize, pos);
+            int inWindow = (int) (pos % windows.windowSize);
+            int n = Math.min(len, w.capacity() - inWindow);
+            w.get(inWindow, dst, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private int readInt(long pos) throws IOException {
+        byte[] b = new byte[4];
+        read(pos, b, 0, 4);
+        return (b[0] & 0xFF) << 24
+                | (b[1] & 0xFF) << 16
+                | (b[2] & 0xFF) << 8
+                | (b[3] & 0xFF);
+    }
+
+    /** Reads {@code [pos, pos + len)} of the pack through the windows. */
+    private class EntryStream extends InputStream {
+        private long pos;
+        private final long end;
+
+        EntryStream(long pos, int len) {
+            this.pos = pos;
+            this.end = pos + len;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos >= end)
+                return -1;
+            int n = (int) Math.min(len, end - pos);
+            PackFile.this.read(pos, b, off, n);
+            pos += n;
+            return n;
+        }
     }
 }
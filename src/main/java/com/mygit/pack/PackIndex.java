@@ -1,58 +1,188 @@
 package com.mygit.pack;
 
-import java.io.InputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
-import com.mygit.util.HashUtils;
+import com.mygit.storage.AbbreviatedObjectId;
+import com.mygit.storage.ObjectId;
+import com.mygit.storage.ObjectIdSet;
 
+/**
+ * Pack index, read into memory and searched in place. Layout (IDX3):
+ *
+ * <pre>
+ * "IDX3" | int version | int[256] fan-out | count x 20-byte id (sorted)
+ *        | count x long offset | count x int CRC32C | int bloom words
+ *        | bloom words x long
+ * </pre>
+ *
+ * The CRC32C of each entry's compressed bytes lets a repack copy the entry
+ * without inflating it. Lookups go through the fan-out (see {@link IdTable}).
+ * Opening an index reads the file and parses nothing else. It is not mapped,
+ * so a pack can be deleted as soon as it is closed, even on Windows. IDX2
+ * files (no CRC column) are searched in place; old IDX1 files are converted
+ * to IDX2 in memory.
+ */
 public class PackIndex {
-    private final Map<String, Long> offsetBySha = new HashMap<>();
+    private static final int VERSION = 3;
+    private static final int VERSION_NO_CRC = 2;
+    private static final int FANOUT_START = 8;
 
-    public PackIndex(Path idxPath) {
-        load(idxPath);
-    }
+    private final ByteBuffer buf;
+    private final IdTable ids;
+    private final int offsetsStart;
+    private final int crcsStart;
+    private final BloomFilter bloom;
 
-    private void load(Path idxPath) {
-        try (InputStream in = Files.newInputStream(idxPath)) {
-            byte[] hdr = in.readNBytes(4);
-            if (!new String(hdr).equals("IDX1")) {
+    public PackIndex(Path idxPath) {
+        try {
+            this.buf = open(idxPath);
+            if (buf.limit() < FANOUT_START + IdTable.FANOUT_SIZE)
                 throw new RuntimeException("Invalid pack index");
-            }
+            int version = buf.getInt(4);
+            if (version != VERSION && version != VERSION_NO_CRC)
+                throw new RuntimeException("Unsupported pack index version: " + version);
 
-            int count = readInt(in);
-            for (int i = 0; i < count; i++) {
-                byte[] shaBytes = in.readNBytes(20);
-                long offset = readLong(in);
-                offsetBySha.put(HashUtils.toHex(shaBytes), offset);
+            this.ids = new IdTable(buf, FANOUT_START);
+            this.offsetsStart = ids.end();
+            int bloomStart = offsetsStart + ids.size() * 8;
+            if (version == VERSION) {
+                this.crcsStart = bloomStart;
+                bloomStart += ids.size() * 4;
+            } else {
+                this.crcsStart = -1;
             }
-        } catch (Exception e) {
+            int words = buf.getInt(bloomStart);
+            if (buf.limit() != bloomStart + 4 + words * 8)
+                throw new RuntimeException("Invalid pack index");
+            this.bloom = BloomFilter.wrap(buf.position(bloomStart + 4), words);
+        } catch (IOException e) {
             throw new RuntimeException("Failed to load pack index", e);
         }
     }
 
-    private int readInt(InputStream in) throws Exception {
-        return (in.read() << 24)
-                | (in.read() << 16)
-                | (in.read() << 8)
-                | in.read();
+    private static ByteBuffer open(Path idxPath) throws IOException {
+        byte[] data = Files.readAllBytes(idxPath);
+
+        String m = new String(data, 0, Math.min(4, data.length));
+        if (m.equals("IDX1"))
+            return ByteBuffer.wrap(convertIdx1(data));
+        if (!m.equals("IDX3") && !m.equals("IDX2"))
+            throw new RuntimeException("Invalid pack index");
+        return ByteBuffer.wrap(data);
+    }
+
+    private static byte[] convertIdx1(byte[] data) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        in.position(4);
+        int count = in.getInt();
+        Map<ObjectId, Long> offsets = new LinkedHashMap<>();
+        byte[] raw = new byte[ObjectId.RAW_LENGTH];
+        for (int i = 0; i < count; i++) {
+            in.get(raw);
+            offsets.put(ObjectId.fromRaw(raw), in.getLong());
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, offsets, null);
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes an index for the given object offsets and the CRC32C of each
+     * entry's compressed bytes.
+     */
+    public static void write(Path idxPath, Map<ObjectId, Long> offsets, Map<ObjectId, Integer> crcs)
+            throws IOException {
+        try (OutputStream out = Files.newOutputStream(idxPath, StandardOpenOption.CREATE_NEW)) {
+            write(out, offsets, crcs);
+        }
     }
 
-    private long readLong(InputStream in) throws Exception {
-        long v = 0;
-        for (int i = 0; i < 8; i++) {
-            v = (v << 8) | (in.read() & 0xFF);
+    // Without crcs this writes the IDX2 layout.
+    private static void write(OutputStream os, Map<ObjectId, Long> offsets, Map<ObjectId, Integer> crcs)
+            throws IOException {
+        List<ObjectId> ids = new ArrayList<>(offsets.keySet());
+        ids.sort(null);
+
+        BloomFilter bloom = new BloomFilter(ids.size());
+        for (ObjectId id : ids)
+            bloom.add(id);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.write(crcs != null ? "IDX3".getBytes() : "IDX2".getBytes());
+        out.writeInt(crcs != null ? VERSION : VERSION_NO_CRC);
+        IdTable.write(out, ids);
+        for (ObjectId id : ids)
+            out.writeLong(offsets.get(id));
+        if (crcs != null) {
+            for (ObjectId id : ids)
+                out.writeInt(crcs.get(id));
         }
-        return v;
+        out.writeInt(bloom.words());
+        bloom.writeTo(out);
+        out.flush();
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    public ObjectId objectId(int pos) {
+        return ids.objectId(pos);
+    }
+
+    public long offset(int pos) {
+        return buf.getLong(offsetsStart + pos * 8);
+    }
+
+    public boolean hasCrcs() {
+        return crcsStart >= 0;
+    }
+
+    /**
+     * CRC32C of the compressed bytes of {@code id}'s entry as an unsigned
+     * value, or -1 if the id is missing or the index predates CRCs.
+     */
+    public long crcOf(ObjectId id) {
+        if (crcsStart < 0)
+            return -1;
+        int pos = ids.findPosition(id);
+        return pos < 0 ? -1 : buf.getInt(crcsStart + pos * 4) & 0xFFFFFFFFL;
+    }
+
+    public boolean mightContain(ObjectId id) {
+        return bloom.mightContain(id);
+    }
+
+    public boolean contains(ObjectId id) {
+        return bloom.mightContain(id) && ids.findPosition(id) >= 0;
+    }
+
+    /** Position of {@code id} in the index, or -1. */
+    public int findPosition(ObjectId id) {
+        return ids.findPosition(id);
     }
 
-    public boolean contains(String sha) {
-        return offsetBySha.containsKey(sha);
+    /** Offset of {@code id} in the pack, or -1 if it is not in this index. */
+    public long offsetOf(ObjectId id) {
+        int pos = ids.findPosition(id);
+        return pos < 0 ? -1 : offset(pos);
     }
 
-    public long offsetOf(String sha) {
-        return offsetBySha.get(sha);
+    /** Adds up to {@code limit} ids starting with {@code prefix} to {@code out}. */
+    public void findByPrefix(AbbreviatedObjectId prefix, ObjectIdSet out, int limit) {
+        ids.findByPrefix(prefix, out, limit);
     }
 }
@@ -1,51 +1,462 @@
 package com.mygit.pack;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
 
+import com.mygit.pack.delta.DeltaDecoder;
+import com.mygit.pack.delta.DeltaDeserializer;
+import com.mygit.storage.AbbreviatedObjectId;
+import com.mygit.storage.ObjectId;
+import com.mygit.storage.ObjectIdSet;
+import com.mygit.storage.ObjectStore;
+import com.mygit.util.Config;
+
+/**
+ * The packs of one objects directory. Lookups go to the multi-pack index
+ * first, when there is a valid one, and then only to packs it does not
+ * cover; without one every pack index is searched in turn. Delta entries
+ * are resolved against their base on read, up to {@code pack.maxDeltaDepth}
+ * links, with intermediate bases kept in the {@link DeltaBaseCache}.
+ * Shared per pack directory, like {@link com.mygit.storage.ObjectCache}, so
+ * every store on a repository reads through the same open packs.
+ */
 public class PackManager {
+    private static final long DEFAULT_MAX_DELTA_DEPTH = 50;
+    private static final Map<Path, PackManager> SHARED = new ConcurrentHashMap<>();
+    static final byte[] DELTA_PREFIX = "bdelta\n".getBytes();
+    private static final byte[] TEXT_DELTA_PREFIX = "delta\n".getBytes();
+    // Enough for a delta's base id and sizes, or an object header.
+    private static final int REUSE_PREFIX = 64;
+
     public static class PackBundle {
+        public final String name;
         public final PackIndex index;
         public final PackFile pack;
 
-        PackBundle(PackIndex index, PackFile pack) {
+        PackBundle(String name, PackIndex index, PackFile pack) {
+            this.name = name;
             this.index = index;
             this.pack = pack;
         }
     }
 
-    private final List<PackBundle> bundles = new ArrayList<>();
+    /** Immutable snapshot, swapped as a whole on rescan. */
+    private static class State {
+        final List<PackBundle> all;
+        final MultiPackIndex midx;
+        final PackBundle[] midxPacks;
+        final List<PackBundle> uncovered;
+
+        State(List<PackBundle> all, MultiPackIndex midx, PackBundle[] midxPacks, List<PackBundle> uncovered) {
+            this.all = all;
+            this.midx = midx;
+            this.midxPacks = midxPacks;
+            this.uncovered = uncovered;
+        }
+    }
+
+    /** Where an entry lives: a pack and the offset of the entry in it. */
+    private static class Location {
+        final PackFile pack;
+        final PackIndex index;
+        final long offset;
+
+        Location(PackBundle bundle, long offset) {
+            this.pack = bundle.pack;
+            this.index = bundle.index;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * A packed entry a new pack can copy as is: a full object of
+     * {@code type}, or a binary delta against {@code deltaBase} (type null).
+     * {@code size} is the size of the object the entry produces.
+     */
+    static class ReusableEntry {
+        final PackFile pack;
+        final long offset;
+        final long crc;
+        final ObjectId deltaBase;
+        final String type;
+        final long size;
+
+        ReusableEntry(Location loc, long crc, ObjectId deltaBase, String type, long size) {
+            this.pack = loc.pack;
+            this.offset = loc.offset;
+            this.crc = crc;
+            this.deltaBase = deltaBase;
+            this.type = type;
+            this.size = size;
+        }
+    }
+
+    private final Path packDir;
+    private final int maxDeltaDepth = (int) Config.getLong("pack.maxDeltaDepth", DEFAULT_MAX_DELTA_DEPTH);
+    private final DeltaBaseCache baseCache = DeltaBaseCache.SHARED;
+    private volatile State state = new State(List.of(), null, null, List.of());
+    private FileTime midxModified;
 
     public PackManager(Path packDir) {
-        load(packDir);
+        this.packDir = packDir;
+        rescan();
+    }
+
+    /**
+     * The shared manager of {@code packDir}. An existing one is rescanned
+     * first, so packs written since by another process are seen.
+     */
+    public static PackManager forDirectory(Path packDir) {
+        Path key = packDir.toAbsolutePath().normalize();
+        PackManager shared = SHARED.get(key);
+        if (shared == null)
+            return SHARED.computeIfAbsent(key, PackManager::new);
+        shared.rescan();
+        return shared;
     }
 
-    private void load(Path packDir) {
+    /**
+     * Loads packs not seen yet, drops packs that were deleted and reloads the
+     * multi-pack index if it changed. Returns true if a pack was added.
+     */
+    public synchronized boolean rescan() {
         try {
-            if (!Files.exists(packDir))
-                return;
+            List<String> names = MultiPackIndex.listPacks(packDir);
+
+            Map<String, PackBundle> byName = new HashMap<>();
+            boolean removed = false;
+            for (PackBundle b : state.all) {
+                if (names.contains(b.name)) {
+                    byName.put(b.name, b);
+                } else {
+                    b.pack.close();
+                    removed = true;
+                }
+            }
+
+            boolean added = false;
+            List<PackBundle> all = new ArrayList<>();
+            for (String name : names) {
+                PackBundle b = byName.get(name);
+                if (b == null) {
+                    b = new PackBundle(name,
+                            new PackIndex(packDir.resolve(name + ".idx")),
+                            new PackFile(packDir.resolve(name + ".pack")));
+                    byName.put(name, b);
+                    added = true;
+                }
+                all.add(b);
+            }
 
-            Files.list(packDir).filter(p -> p.toString().endsWith(".idx")).forEach(idx -> {
-                Path pack = idx.resolveSibling(
-                        idx.getFileName().toString().replace(".idx", ".pack"));
-                if (Files.exists(pack)) {
-                    bundles.add(new PackBundle(new PackIndex(idx), new PackFile(pack)));
+            MultiPackIndex midx = state.midx;
+            Path midxPath = packDir.resolve(MultiPackIndex.FILE_NAME);
+            FileTime modified = Files.exists(midxPath) ? Files.getLastModifiedTime(midxPath) : null;
+            if (added || removed || !Objects.equals(modified, midxModified)) {
+                midx = modified == null ? null : MultiPackIndex.open(packDir);
+                midxModified = modified;
+            }
+
+            PackBundle[] midxPacks = null;
+            if (midx != null) {
+                midxPacks = new PackBundle[midx.packNames().size()];
+                for (int i = 0; i < midxPacks.length; i++) {
+                    PackBundle b = byName.get(midx.packNames().get(i));
+                    if (b == null) {
+                        midx = null;
+                        break;
+                    }
+                    midxPacks[i] = b;
+                }
+            }
+
+            List<PackBundle> uncovered = all;
+            if (midx != null) {
+                uncovered = new ArrayList<>();
+                for (PackBundle b : all) {
+                    if (!midx.packNames().contains(b.name))
+                        uncovered.add(b);
                 }
-            });
+            }
+
+            state = new State(Collections.unmodifiableList(all), midx, midxPacks,
+                    Collections.unmodifiableList(uncovered));
+            return added;
         } catch (Exception e) {
             throw new RuntimeException("Failed to load packs", e);
         }
     }
 
-    public byte[] readFromPacks(String sha) {
-        for (PackBundle b : bundles) {
-            if (b.index.contains(sha)) {
-                long offset = b.index.offsetOf(sha);
-                return b.pack.readObjectAt(offset);
+    /**
+     * Stops using the packs named in {@code names}, closes them and deletes
+     * their files: bitmaps and index first, since a pack without an index is
+     * never listed. The multi-pack index still lists them, so it is not used
+     * again until {@link #updateMultiPackIndex} rewrites it.
+     */
+    public synchronized void delete(Collection<String> names) {
+        List<PackBundle> kept = new ArrayList<>();
+        for (PackBundle b : state.all) {
+            if (names.contains(b.name))
+                b.pack.close();
+            else
+                kept.add(b);
+        }
+        List<PackBundle> all = Collections.unmodifiableList(kept);
+        state = new State(all, null, null, all);
+        midxModified = null;
+
+        try {
+            for (String name : names) {
+                Files.deleteIfExists(packDir.resolve(name + PackBitmap.EXTENSION));
+                Files.deleteIfExists(packDir.resolve(name + ".idx"));
+                Files.deleteIfExists(packDir.resolve(name + ".pack"));
             }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to delete packs", e);
+        }
+    }
+
+    /** Rewrites the multi-pack index to cover every pack, then reloads. */
+    public void updateMultiPackIndex() {
+        MultiPackIndex.update(packDir);
+        rescan();
+    }
+
+    public List<PackBundle> packs() {
+        return state.all;
+    }
+
+    /** Reachability bitmaps of the largest pack that has them, or null. */
+    public PackBitmap bitmap() {
+        PackBitmap best = null;
+        for (PackBundle b : state.all) {
+            if (best != null && b.index.size() <= best.index().size())
+                continue;
+            PackBitmap bitmap = PackBitmap.open(packDir, b);
+            if (bitmap != null)
+                best = bitmap;
+        }
+        return best;
+    }
+
+    public boolean has(ObjectId id) {
+        State s = state;
+        if (s.midx != null && s.midx.findPosition(id) >= 0)
+            return true;
+        for (PackBundle b : s.uncovered) {
+            if (b.index.contains(id))
+                return true;
+        }
+        return false;
+    }
+
+    public void findByPrefix(AbbreviatedObjectId prefix, ObjectIdSet out, int limit) {
+        State s = state;
+        if (s.midx != null)
+            s.midx.findByPrefix(prefix, out, limit);
+        for (PackBundle b : s.uncovered) {
+            if (out.size() >= limit)
+                return;
+            b.index.findByPrefix(prefix, out, limit);
+        }
+    }
+
+    public ObjectStore.ObjectHeader readHeaderFromPacks(ObjectId id) {
+        Location loc = locate(id);
+        if (loc == null)
+            return null;
+
+        // A delta's size is in its header; its type is the type at the end
+        // of the chain. Entries are told apart by their prefix first, since
+        // a binary base id can look like the tail of an object header. Only
+        // text deltas are inflated in full, never the base bodies.
+        long size = -1;
+        for (int depth = 0; depth <= maxDeltaDepth; depth++) {
+            byte[] prefix = loc.pack.readPrefixAt(loc.offset, REUSE_PREFIX);
+            byte[] delta;
+            if (startsWith(prefix, DELTA_PREFIX)) {
+                delta = prefix;
+            } else if (startsWith(prefix, TEXT_DELTA_PREFIX)) {
+                delta = loc.pack.readObjectAt(loc.offset);
+            } else {
+                ObjectStore.ObjectHeader header;
+                try {
+                    header = ObjectStore.parseHeader(new ByteArrayInputStream(prefix));
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to read object header", e);
+                }
+                if (header == null)
+                    throw new RuntimeException("Failed to read object header for " + id);
+                return new ObjectStore.ObjectHeader(header.type, size < 0 ? header.size : size);
+            }
+            if (size < 0)
+                size = resultSize(delta);
+            loc = locateBase(delta);
+        }
+        throw new RuntimeException("Delta chain too deep for " + id);
+    }
+
+    public byte[] readFromPacks(ObjectId id) {
+        Location loc = locate(id);
+        return loc == null ? null : readAt(loc);
+    }
+
+    /**
+     * Reads the entry at {@code start}, resolving delta chains. The chain is
+     * followed down to a full object or a cached base, then the deltas are
+     * applied back up; every intermediate result is cached as a base.
+     */
+    private byte[] readAt(Location start) {
+        Deque<Location> locations = new ArrayDeque<>();
+        Deque<byte[]> deltas = new ArrayDeque<>();
+
+        Location loc = start;
+        byte[] object;
+        while (true) {
+            object = baseCache.get(loc.pack, loc.offset);
+            if (object != null)
+                break;
+
+            object = loc.pack.readObjectAt(loc.offset);
+            if (!isDelta(object)) {
+                if (!deltas.isEmpty())
+                    baseCache.put(loc.pack, loc.offset, object);
+                break;
+            }
+
+            if (deltas.size() >= maxDeltaDepth)
+                throw new RuntimeException("Delta chain longer than " + maxDeltaDepth);
+            locations.push(loc);
+            deltas.push(object);
+            loc = locateBase(object);
+        }
+
+        while (!deltas.isEmpty()) {
+            object = apply(object, deltas.pop());
+            Location at = locations.pop();
+            if (!deltas.isEmpty())
+                baseCache.put(at.pack, at.offset, object);
+        }
+        return object;
+    }
+
+    private Location locateBase(byte[] delta) {
+        ObjectId baseId = baseId(delta);
+        Location base = locate(baseId);
+        if (base == null)
+            throw new RuntimeException("Missing delta base: " + baseId.name());
+        return base;
+    }
+
+    /**
+     * The stored entry for {@code id} if it can be copied into a new pack,
+     * or null. Only entries whose index records a CRC are offered, so the
+     * copy can be checked without inflating it; text-format deltas are not.
+     */
+    ReusableEntry reusable(ObjectId id) {
+        Location loc = locate(id);
+        if (loc == null)
+            return null;
+        long crc = loc.index.crcOf(id);
+        if (crc < 0)
+            return null;
+
+        byte[] prefix = loc.pack.readPrefixAt(loc.offset, REUSE_PREFIX);
+        if (startsWith(prefix, DELTA_PREFIX)) {
+            return new ReusableEntry(loc, crc, DeltaDecoder.baseId(prefix, DELTA_PREFIX.length), null,
+                    DeltaDecoder.resultSize(prefix, DELTA_PREFIX.length));
+        }
+        if (startsWith(prefix, TEXT_DELTA_PREFIX))
+            return null;
+        try {
+            ObjectStore.ObjectHeader header = ObjectStore.parseHeader(new ByteArrayInputStream(prefix));
+            return new ReusableEntry(loc, crc, null, header.type, header.size);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** The compressed bytes of {@code entry}, checked against the index CRC. */
+    byte[] readReusable(ReusableEntry entry) {
+        byte[] raw = entry.pack.readRawAt(entry.offset);
+        CRC32C crc = new CRC32C();
+        crc.update(raw);
+        if (crc.getValue() != entry.crc)
+            throw new RuntimeException("Corrupt pack entry at offset " + entry.offset);
+        return raw;
+    }
+
+    private Location locate(ObjectId id) {
+        State s = state;
+        if (s.midx != null) {
+            int pos = s.midx.findPosition(id);
+            if (pos >= 0)
+                return new Location(s.midxPacks[s.midx.packAt(pos)], s.midx.offsetAt(pos));
+        }
+        for (PackBundle b : s.uncovered) {
+            long offset = offsetIn(b, id);
+            if (offset >= 0)
+                return new Location(b, offset);
         }
         return null;
     }
+
+    // Delta entries are binary ("bdelta\n"); packs written before that
+    // carry text deltas ("delta\n"), which are still decoded here.
+    private static boolean isDelta(byte[] raw) {
+        return startsWith(raw, DELTA_PREFIX) || startsWith(raw, TEXT_DELTA_PREFIX);
+    }
+
+    private static ObjectId baseId(byte[] delta) {
+        if (startsWith(delta, DELTA_PREFIX))
+            return DeltaDecoder.baseId(delta, DELTA_PREFIX.length);
+        if (!startsWith(delta, TEXT_DELTA_PREFIX))
+            throw new RuntimeException("Expected a delta entry");
+        String baseSha = DeltaDeserializer.deserialize(delta, TEXT_DELTA_PREFIX.length).baseSha;
+        if (!ObjectId.isId(baseSha))
+            throw new RuntimeException("Missing delta base: " + baseSha);
+        return ObjectId.fromHex(baseSha);
+    }
+
+    private static long resultSize(byte[] delta) {
+        if (startsWith(delta, DELTA_PREFIX))
+            return DeltaDecoder.resultSize(delta, DELTA_PREFIX.length);
+        if (!startsWith(delta, TEXT_DELTA_PREFIX))
+            throw new RuntimeException("Expected a delta entry");
+        return DeltaDecoder.resultSize(DeltaDeserializer.deserialize(delta, TEXT_DELTA_PREFIX.length).ops);
+    }
+
+    private static byte[] apply(byte[] baseObject, byte[] delta) {
+        if (startsWith(delta, DELTA_PREFIX))
+            return DeltaDecoder.applyToObject(baseObject, delta, DELTA_PREFIX.length);
+        return DeltaDecoder.applyToObject(baseObject,
+                DeltaDeserializer.deserialize(delta, TEXT_DELTA_PREFIX.length).ops);
+    }
+
+    private static boolean startsWith(byte[] raw, byte[] prefix) {
+        if (raw.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (raw[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static long offsetIn(PackBundle b, ObjectId id) {
+        return b.index.mightContain(id) ? b.index.offsetOf(id) : -1;
+    }
 }
@@ -3,119 +3,111 @@ package com.mygit.pack;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Set;
 
 import com.mygit.RefsUtil;
+import com.mygit.storage.ObjectId;
+import com.mygit.storage.ObjectIdMap;
+import com.mygit.storage.ObjectIdSet;
 import com.mygit.storage.ObjectStore;
-import com.mygit.storage.TreeReader;
-import com.mygit.storage.ObjectStore.ParseObject;
-import com.mygit.storage.TreeReader.TreeEntry;
 
 public class ReachabilityWalker {
     private final ObjectStore store;
-    private final TreeReader tr;
+    private ObjectIdMap<Integer> pathHashes = new ObjectIdMap<>();
+    private ObjectWalk.ProgressMonitor progress;
 
     public ReachabilityWalker() {
         this.store = ObjectStore.openDefault();
-        this.tr = new TreeReader(store);
     }
 
-    public Set<String> reachableFromRefs() {
-        Set<String> result = new HashSet<>();
-
-        try {
-            Path refsHeads = Paths.get(".mygit").resolve("refs").resolve("heads");
-            if (!Files.exists(refsHeads))
-                return result;
-
-            Files.walk(refsHeads, 2).filter(F -> !Files.isDirectory(F)).forEach(F -> {
-                try {
-                    String sha = Files.readString(F).trim();
-                    collectFromCommit(sha, result);
-                } catch (Exception ignored) {
-                }
-            });
-            String headRaw = RefsUtil.readHEADRaw();
-            if (headRaw != null && headRaw.startsWith("ref: ")) {
-                collectFromCommit(headRaw, result);
-            }
-        } catch (Exception e) {
-            throw new RuntimeException("Failed reading refs", e);
-        }
-        return result;
+    public void setProgress(ObjectWalk.ProgressMonitor progress) {
+        this.progress = progress;
     }
 
-    public boolean isReachable(String fromCommit, String targetCommit) {
-        Set<String> visited = new HashSet<>();
-        return dfs(fromCommit, targetCommit, visited);
+    public ObjectIdSet reachableFromRefs() {
+        return reachableFrom(refTips());
     }
 
-    private boolean dfs(String current, String target, Set<String> visited) {
-        if (current == null || visited.contains(current)) {
-            return false;
+    /**
+     * Every object reachable from {@code tips}, found by an {@link ObjectWalk}.
+     * With pack bitmaps this is the union of the bitmaps of the first covered
+     * commits met, plus the commits and trees above them, which are walked
+     * until they run into objects the bitmaps already hold.
+     */
+    public ObjectIdSet reachableFrom(Collection<ObjectId> tips) {
+        ObjectWalk walk = new ObjectWalk(store).progress(progress);
+        PackBitmap bitmap = store.getPackManager().bitmap();
+        if (bitmap == null) {
+            ObjectIdSet result = walk.walk(tips);
+            pathHashes = walk.pathHashes();
+            return result;
         }
-        if (current.equals(target)) {
-            return true;
-        }
-        visited.add(current);
-
-        ObjectStore.ParseObject po = store.parseObject(store.readObject(current));
 
-        String body = new String(po.data);
-        for (String line : body.split("\n")) {
-            if (line.startsWith("parent ")) {
-                String p = line.substring(7).trim();
-                if (dfs(p, target, visited)) {
-                    return true;
-                }
-            }
+        // Commits are all tested before any tree, so trees and blobs see
+        // the final union and the bitmap is only read from the workers.
+        PackIndex index = bitmap.index();
+        long[] bits = new long[EwahBitmap.plainWords(index.size())];
+        walk.skip(id -> {
+            int pos = index.findPosition(id);
+            if (pos >= 0 && PackBitmap.isSet(bits, pos))
+                return true;
+            EwahBitmap b = bitmap.bitmapFor(id);
+            if (b == null)
+                return false;
+            b.orInto(bits);
+            return true;
+        });
+        ObjectIdSet result = walk.walk(tips);
+        pathHashes = walk.pathHashes();
+
+        for (int pos = 0; pos < index.size(); pos++) {
+            if (!PackBitmap.isSet(bits, pos))
+                continue;
+            ObjectId id = index.objectId(pos);
+            if (result.add(id) && bitmap.nameHash(pos) != 0)
+                pathHashes.put(id, bitmap.nameHash(pos));
         }
-        return false;
+        return result;
     }
 
-    private void collectFromCommit(String commitSha, Set<String> acc) {
-        if (commitSha == null || commitSha.isBlank() || acc.contains(commitSha))
-            return;
-        acc.add(commitSha);
-
+    /** Commits named by the branch refs and by a detached HEAD. */
+    public List<ObjectId> refTips() {
+        List<ObjectId> tips = new ArrayList<>();
         try {
-            byte[] commitStore = store.readObject(commitSha);
-            ParseObject po = store.parseObject(commitStore);
-            if (!"commit".equals(po.type))
-                return;
-            String body = new String(po.data);
-
-            String tree = null;
-            for (String line : body.split("\n")) {
-                if (line.startsWith("tree ")) {
-                    tree = line.substring(5).trim();
-                }
-                if (line.startsWith("parent ")) {
-                    String p = line.substring(7).trim();
-                    collectFromCommit(p, acc);
-                }
+            Path refsHeads = Paths.get(".mygit").resolve("refs").resolve("heads");
+            if (Files.exists(refsHeads)) {
+                Files.walk(refsHeads, 2).filter(F -> !Files.isDirectory(F)).forEach(F -> {
+                    try {
+                        String sha = Files.readString(F).trim();
+                        if (ObjectId.isId(sha))
+                            tips.add(ObjectId.fromHex(sha));
+                    } catch (Exception ignored) {
+                    }
+                });
+            }
+            String headRaw = RefsUtil.readHEADRaw();
+            if (headRaw != null && !headRaw.startsWith("ref: ") && ObjectId.isId(headRaw)) {
+                tips.add(ObjectId.fromHex(headRaw));
             }
-            if (tree != null)
-                collectFromTree(tree, acc);
         } catch (Exception e) {
+            throw new RuntimeException("Failed reading refs", e);
         }
+        return tips;
     }
 
-    private void collectFromTree(String treeSha, Set<String> acc) {
-        if (treeSha == null || treeSha.isBlank() || acc.contains(treeSha))
-            return;
-
-        acc.add(treeSha);
-        List<TreeEntry> entries = tr.readTree(treeSha);
-        for (TreeEntry e : entries) {
-            if (e.isTree()) {
-                collectFromTree(e.shaHex, acc);
-            } else {
-                acc.add(e.shaHex);
-            }
-        }
+    /**
+     * Name hash of a path each blob was reached at during the last
+     * {@link #reachableFrom}, for ordering the delta search.
+     */
+    public ObjectIdMap<Integer> pathHashes() {
+        return pathHashes;
     }
 
+    public boolean isReachable(String fromCommit, String targetCommit) {
+        if (fromCommit == null || targetCommit == null)
+            return false;
+        return new CommitLookup(store).isAncestor(ObjectId.fromHex(targetCommit), ObjectId.fromHex(fromCommit));
+    }
 }
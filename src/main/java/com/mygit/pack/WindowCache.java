@@ -0,0 +1,143 @@
+package com.mygit.pack;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mygit.util.Config;
+
+/**
+ * Windows over pack files, read into the heap and shared by every open pack.
+ * Each window holds {@code pack.windowSize} bytes; the least recently used
+ * windows are dropped once the total passes {@code pack.windowLimit}. Lookups
+ * go through a concurrent map and never lock; only eviction is serialized.
+ * Each window is a heap copy rather than a mapping: a mapping outlives its
+ * channel until it is garbage collected, and Windows refuses to delete a
+ * mapped file, so a closed pack could not be removed.
+ */
+class WindowCache {
+    private static final long DEFAULT_WINDOW_SIZE = 64L * 1024;
+    private static final long DEFAULT_WINDOW_LIMIT = 64L * 1024 * 1024;
+
+    static final WindowCache SHARED = new WindowCache(
+            Config.getLong("pack.windowSize", DEFAULT_WINDOW_SIZE),
+            Config.getLong("pack.windowLimit", DEFAULT_WINDOW_LIMIT));
+
+    final int windowSize;
+    private final long limit;
+
+    private final Map<Key, Window> windows = new ConcurrentHashMap<>();
+    private final AtomicLong cachedBytes = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+
+    WindowCache(long windowSize, long limit) {
+        if (windowSize <= 0 || windowSize > Integer.MAX_VALUE)
+            throw new RuntimeException("Invalid pack.windowSize: " + windowSize);
+        this.windowSize = (int) windowSize;
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the window holding {@code position}. Callers must only use
+     * absolute gets on it, as the buffer is shared between threads.
+     */
+    ByteBuffer window(PackFile pack, FileChannel channel, long fileSize, long position) {
+        Key key = new Key(pack, position / windowSize);
+        Window w = windows.get(key);
+        if (w == null) {
+            w = windows.computeIfAbsent(key, k -> read(channel, fileSize, k.index));
+            if (cachedBytes.get() > limit)
+                evict(key);
+        }
+        w.lastUsed = clock.incrementAndGet();
+        return w.buffer;
+    }
+
+    /** Drops every window of {@code pack}. */
+    void release(PackFile pack) {
+        windows.entrySet().removeIf(e -> {
+            if (e.getKey().pack != pack)
+                return false;
+            cachedBytes.addAndGet(-e.getValue().buffer.capacity());
+            return true;
+        });
+    }
+
+    long cachedBytes() {
+        return cachedBytes.get();
+    }
+
+    private Window read(FileChannel channel, long fileSize, long index) {
+        long start = index * windowSize;
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(windowSize, fileSize - start));
+        try {
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, start + buf.position()) < 0)
+                    throw new EOFException("Unexpected end of pack");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read pack window", e);
+        }
+        cachedBytes.addAndGet(buf.capacity());
+        return new Window(buf);
+    }
+
+    private synchronized void evict(Key keep) {
+        if (cachedBytes.get() <= limit)
+            return;
+
+        List<Map.Entry<Key, Window>> byAge = new ArrayList<>(windows.entrySet());
+        for (Map.Entry<Key, Window> e : byAge)
+            e.getValue().rank = e.getValue().lastUsed;
+        byAge.sort((a, b) -> Long.compare(a.getValue().rank, b.getValue().rank));
+
+        for (Map.Entry<Key, Window> e : byAge) {
+            if (cachedBytes.get() <= limit)
+                break;
+            if (e.getKey().equals(keep))
+                continue;
+            if (windows.remove(e.getKey(), e.getValue()))
+                cachedBytes.addAndGet(-e.getValue().buffer.capacity());
+        }
+    }
+
+    private static class Window {
+        final ByteBuffer buffer;
+        volatile long lastUsed;
+        long rank;
+
+        Window(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Key {
+        final PackFile pack;
+        final long index;
+
+        Key(PackFile pack, long index) {
+            this.pack = pack;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return pack == other.pack && index == other.index;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(pack) * 31 + Long.hashCode(index);
+        }
+    }
+}
@@ -3,6 +3,8 @@ package com.mygit.pack.delta;
 import java.io.ByteArrayOutputStream;
 import java.util.List;
 
+import com.mygit.storage.ObjectId;
+
 public class DeltaDecoder {
     public static byte[] apply(byte[] base, List<DeltaInstruction> ops) {
         try {
@@ -23,4 +25,156 @@ public class DeltaDecoder {
             throw new RuntimeException("Delta apply failed", e);
         }
     }
+
+    /** Size of the object {@code ops} produce, without applying them. */
+    public static long resultSize(List<DeltaInstruction> ops) {
+        long size = 0;
+        for (DeltaInstruction op : ops) {
+            if (op.type() == DeltaInstruction.COPY)
+                size += ((CopyInstruction) op).length;
+            else
+                size += ((InsertInstruction) op).data.length;
+        }
+        return size;
+    }
+
+    /**
+     * Applies {@code ops} to the body of a stored object ("type size\0data")
+     * and returns the result in the same form and of the same type. The
+     * output is allocated once at its final size.
+     */
+    public static byte[] applyToObject(byte[] baseObject, List<DeltaInstruction> ops) {
+        int bodyStart = bodyStart(baseObject);
+        int bodyLength = baseObject.length - bodyStart;
+        long size = resultSize(ops);
+        byte[] out = allocate(baseObject, bodyStart, size);
+        int pos = out.length - (int) size;
+        for (DeltaInstruction op : ops) {
+            if (op.type() == DeltaInstruction.COPY) {
+                CopyInstruction c = (CopyInstruction) op;
+                if (c.offset < 0 || c.length < 0 || c.offset + c.length > bodyLength)
+                    throw new RuntimeException("Delta copy out of range");
+                System.arraycopy(baseObject, bodyStart + c.offset, out, pos, c.length);
+                pos += c.length;
+            } else {
+                byte[] data = ((InsertInstruction) op).data;
+                System.arraycopy(data, 0, out, pos, data.length);
+                pos += data.length;
+            }
+        }
+        return out;
+    }
+
+    /** Base object id of a binary delta starting at {@code off}. */
+    public static ObjectId baseId(byte[] delta, int off) {
+        if (off + ObjectId.RAW_LENGTH > delta.length)
+            throw new RuntimeException("Truncated delta header");
+        return ObjectId.fromRaw(delta, off);
+    }
+
+    /** Result size recorded in the header of a binary delta. */
+    public static long resultSize(byte[] delta, int off) {
+        int p = varintEnd(delta, off + ObjectId.RAW_LENGTH);
+        return readVarint(delta, p);
+    }
+
+    /**
+     * Applies a binary delta starting at {@code off} to a stored base object
+     * ("type size\0data"). The result is allocated once from the size in the
+     * delta header and the instructions are decoded straight into it.
+     */
+    public static byte[] applyToObject(byte[] baseObject, byte[] delta, int off) {
+        int bodyStart = bodyStart(baseObject);
+        int bodyLength = baseObject.length - bodyStart;
+
+        int p = off + ObjectId.RAW_LENGTH;
+        long baseSize = readVarint(delta, p);
+        p = varintEnd(delta, p);
+        long size = readVarint(delta, p);
+        p = varintEnd(delta, p);
+        if (baseSize != bodyLength)
+            throw new RuntimeException("Delta base size mismatch");
+
+        byte[] out = allocate(baseObject, bodyStart, size);
+        int pos = out.length - (int) size;
+        while (p < delta.length) {
+            int op = delta[p++] & 0xFF;
+            if ((op & 0x80) != 0) {
+                long cpOff = 0;
+                int cpLen = 0;
+                for (int i = 0; i < 4; i++) {
+                    if ((op & (1 << i)) != 0)
+                        cpOff |= (long) (delta[p++] & 0xFF) << (8 * i);
+                }
+                for (int i = 0; i < 3; i++) {
+                    if ((op & (0x10 << i)) != 0)
+                        cpLen |= (delta[p++] & 0xFF) << (8 * i);
+                }
+                if (cpLen == 0)
+                    cpLen = 0x10000;
+                if (cpOff + cpLen > bodyLength || pos + cpLen > out.length)
+                    throw new RuntimeException("Delta copy out of range");
+                System.arraycopy(baseObject, bodyStart + (int) cpOff, out, pos, cpLen);
+                pos += cpLen;
+            } else if (op != 0) {
+                if (p + op > delta.length || pos + op > out.length)
+                    throw new RuntimeException("Truncated delta insert");
+                System.arraycopy(delta, p, out, pos, op);
+                p += op;
+                pos += op;
+            } else {
+                throw new RuntimeException("Invalid delta opcode");
+            }
+        }
+        if (pos != out.length)
+            throw new RuntimeException("Delta result size mismatch");
+        return out;
+    }
+
+    private static int bodyStart(byte[] object) {
+        int nul = 0;
+        while (nul < object.length && object[nul] != 0)
+            nul++;
+        if (nul == object.length)
+            throw new RuntimeException("Invalid delta base");
+        return nul + 1;
+    }
+
+    // Result array with the base's type and the new size already written.
+    private static byte[] allocate(byte[] baseObject, int bodyStart, long size) {
+        int sp = 0;
+        while (sp < bodyStart && baseObject[sp] != ' ')
+            sp++;
+        if (sp >= bodyStart - 1)
+            throw new RuntimeException("Invalid delta base");
+
+        byte[] header = (new String(baseObject, 0, sp) + " " + size + "\0").getBytes();
+        if (size < 0 || header.length + size > Integer.MAX_VALUE - 8)
+            throw new RuntimeException("Delta result too large");
+
+        byte[] out = new byte[header.length + (int) size];
+        System.arraycopy(header, 0, out, 0, header.length);
+        return out;
+    }
+
+    private static long readVarint(byte[] buf, int p) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (p >= buf.length)
+                throw new RuntimeException("Truncated delta header");
+            int b = buf[p++];
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new RuntimeException("Invalid delta varint");
+    }
+
+    private static int varintEnd(byte[] buf, int p) {
+        while (p < buf.length && (buf[p] & 0x80) != 0)
+            p++;
+        if (p >= buf.length)
+            throw new RuntimeException("Truncated delta header");
+        return p + 1;
+    }
 }
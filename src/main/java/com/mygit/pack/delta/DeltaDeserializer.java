@@ -1,11 +1,15 @@
 package com.mygit.pack.delta;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Reader for the original text delta format ("BASE sha", then "C off len"
+ * and "I len" lines). New packs use the binary format written by
+ * {@link DeltaSerializer}; this is kept so older packs stay readable.
+ */
 public class DeltaDeserializer {
     public static class DeltaData {
         public final String baseSha;
@@ -18,26 +22,41 @@ public class DeltaDeserializer {
     }
 
     public static DeltaData deserialize(byte[] data) {
-        try {
-            BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data)));
+        return deserialize(data, 0);
+    }
 
-            String baseLine = br.readLine();
+    /**
+     * Parses a text payload starting at {@code start}. Insert data is taken byte for byte, so binary content
+     * survives the round trip.
+     */
+    public static DeltaData deserialize(byte[] data, int start) {
+        try {
+            int eol = lineEnd(data, start);
+            String baseLine = ascii(data, start, eol);
+            if (!baseLine.startsWith("BASE "))
+                throw new RuntimeException("Missing delta base line");
             String baseSha = baseLine.substring(5).trim();
 
             List<DeltaInstruction> ops = new ArrayList<>();
-            String line;
+            int pos = eol + 1;
 
-            while ((line = br.readLine()) != null) {
+            while (pos < data.length) {
+                eol = lineEnd(data, pos);
+                String line = ascii(data, pos, eol);
                 if (line.startsWith("C ")) {
                     String[] p = line.split(" ");
                     ops.add(
                             new CopyInstruction(Integer.parseInt(p[1]), Integer.parseInt(p[2])));
+                    pos = eol + 1;
                 } else if (line.startsWith("I ")) {
                     int len = Integer.parseInt(line.substring(2));
-                    char[] buf = new char[len];
-                    br.read(buf, 0, len);
-                    br.read();
-                    ops.add(new InsertInstruction(new String(buf).getBytes()));
+                    int from = eol + 1;
+                    if (from + len > data.length)
+                        throw new RuntimeException("Truncated insert");
+                    ops.add(new InsertInstruction(Arrays.copyOfRange(data, from, from + len)));
+                    pos = from + len + 1;
+                } else {
+                    throw new RuntimeException("Unknown delta instruction: " + line);
                 }
             }
             return new DeltaData(baseSha, ops);
@@ -45,4 +64,16 @@ public class DeltaDeserializer {
             throw new RuntimeException("Delta deserialize failed", e);
         }
     }
+
+    private static int lineEnd(byte[] data, int from) {
+        for (int i = from; i < data.length; i++) {
+            if (data[i] == '\n')
+                return i;
+        }
+        return data.length;
+    }
+
+    private static String ascii(byte[] data, int from, int to) {
+        return new String(data, from, to - from, StandardCharsets.US_ASCII);
+    }
 }
@@ -1,37 +1,158 @@
 package com.mygit.pack.delta;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Builds copy/insert instructions turning {@code base} into {@code target}.
+ * The base is indexed in fixed-size blocks by a rolling (Rabin-Karp) hash;
+ * the target is scanned with the same hash rolled one byte at a time, so
+ * each position costs O(1) plus the verification of a few candidates.
+ * Matches are extended forwards and backwards, and unmatched bytes are
+ * gathered into one insert per run.
+ */
 public class DeltaEncoder {
-    private static final int MIN_MATCH = 8;
+    private static final int BLOCK = 16;
+    private static final int PRIME = 0x01000193;
+    private static final int MAX_CHAIN = 64;
+
+    // PRIME^BLOCK, to drop the outgoing byte from the rolling hash.
+    private static final int OUT_FACTOR;
+
+    static {
+        int f = 1;
+        for (int i = 0; i < BLOCK; i++)
+            f *= PRIME;
+        OUT_FACTOR = f;
+    }
 
     public static List<DeltaInstruction> encode(byte[] base, byte[] target) {
         List<DeltaInstruction> ops = new ArrayList<>();
+        if (base.length < BLOCK || target.length < BLOCK) {
+            if (target.length > 0)
+                ops.add(new InsertInstruction(target.clone()));
+            return ops;
+        }
+
+        BlockIndex index = new BlockIndex(base);
+
+        int literalStart = 0;
         int i = 0;
+        int h = hash(target, 0);
+        int limit = target.length - BLOCK;
 
-        while (i < target.length) {
-            int bestLen = 0;
+        while (i <= limit) {
             int bestOff = -1;
-
-            for (int j=0; j < base.length - MIN_MATCH; j++){
-            int len = 0;
-            while (i + len < target.length && j + len < base.length && target[i + len] == base[j + len]) {
-                len++;
-                }
+            int bestLen = 0;
+            int chain = 0;
+            for (int c = index.head(h); c >= 0 && chain < MAX_CHAIN; c = index.next[c], chain++) {
+                int off = c * BLOCK;
+                int len = matchForward(base, off, target, i);
                 if (len > bestLen) {
                     bestLen = len;
-                    bestOff = j;
+                    bestOff = off;
                 }
             }
-            if (bestLen >= MIN_MATCH) {
-                ops.add(new CopyInstruction(bestOff, bestLen));
-                i += bestLen;
-            } else {
-                ops.add(new InsertInstruction(new byte[]{target[i]}));
+
+            if (bestLen < BLOCK) {
+                if (i < limit)
+                    h = roll(h, target[i], target[i + BLOCK]);
                 i++;
+                continue;
             }
+
+            // Grow the match backwards into the pending literal run.
+            int back = 0;
+            while (bestOff - back > 0 && i - back > literalStart
+                    && base[bestOff - back - 1] == target[i - back - 1])
+                back++;
+
+            int start = i - back;
+            if (start > literalStart)
+                ops.add(new InsertInstruction(Arrays.copyOfRange(target, literalStart, start)));
+            addCopy(ops, bestOff - back, bestLen + back);
+
+            i += bestLen;
+            literalStart = i;
+            if (i <= limit)
+                h = hash(target, i);
         }
+
+        if (literalStart < target.length)
+            ops.add(new InsertInstruction(Arrays.copyOfRange(target, literalStart, target.length)));
         return ops;
     }
+
+    /** Appends a copy, merging it into the previous one when contiguous. */
+    private static void addCopy(List<DeltaInstruction> ops, int offset, int length) {
+        if (!ops.isEmpty() && ops.get(ops.size() - 1) instanceof CopyInstruction) {
+            CopyInstruction prev = (CopyInstruction) ops.get(ops.size() - 1);
+            if (prev.offset + prev.length == offset) {
+                ops.set(ops.size() - 1, new CopyInstruction(prev.offset, prev.length + length));
+                return;
+            }
+        }
+        ops.add(new CopyInstruction(offset, length));
+    }
+
+    private static int matchForward(byte[] base, int off, byte[] target, int pos) {
+        int max = Math.min(base.length - off, target.length - pos);
+        int len = 0;
+        while (len < max && base[off + len] == target[pos + len])
+            len++;
+        return len;
+    }
+
+    private static int hash(byte[] data, int off) {
+        int h = 0;
+        for (int i = 0; i < BLOCK; i++)
+            h = h * PRIME + (data[off + i] & 0xFF);
+        return h;
+    }
+
+    private static int roll(int h, byte out, byte in) {
+        return h * PRIME - (out & 0xFF) * OUT_FACTOR + (in & 0xFF);
+    }
+
+    /**
+     * Hash table from block hash to the base blocks having it, as chained
+     * int arrays. Later blocks are found first. A block with the same hash
+     * as the one before it is left out, as git's diff-delta does, so a run
+     * is only indexed at its start and a match there extends over all of it
+     * instead of being cut short by the chain limit.
+     */
+    private static class BlockIndex {
+        final int[] heads;
+        final int[] next;
+        final int mask;
+
+        BlockIndex(byte[] base) {
+            int blocks = base.length / BLOCK;
+            int size = Integer.highestOneBit(Math.max(16, blocks * 2 - 1)) << 1;
+            this.heads = new int[size];
+            this.next = new int[blocks];
+            this.mask = size - 1;
+            Arrays.fill(heads, -1);
+
+            int previous = 0;
+            for (int b = 0; b < blocks; b++) {
+                int h = hash(base, b * BLOCK);
+                if (b > 0 && h == previous)
+                    continue;
+                previous = h;
+                int slot = spread(h) & mask;
+                next[b] = heads[slot];
+                heads[slot] = b;
+            }
+        }
+
+        int head(int h) {
+            return heads[spread(h) & mask];
+        }
+
+        private static int spread(int h) {
+            return h ^ (h >>> 16);
+        }
+    }
 }
@@ -3,28 +3,75 @@ package com.mygit.pack.delta;
 import java.io.ByteArrayOutputStream;
 import java.util.List;
 
+import com.mygit.storage.ObjectId;
+
+/**
+ * Writes the binary delta format: the 20-byte base id, the base and result
+ * sizes as varints, then the instructions. A copy is an opcode with the high
+ * bit set whose low bits say which offset (bits 0-3) and length (bits 4-6)
+ * bytes follow, little-endian, zero bytes omitted. An insert is an opcode of
+ * 1-127 giving the number of literal bytes that follow. Opcode 0 is reserved.
+ */
 public class DeltaSerializer {
-    public static byte[] serialize(String baseSha, List<DeltaInstruction> ops) {
-        try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            out.write(("BASE " + baseSha + "\n").getBytes());
+    static final int MAX_COPY = 0xFFFFFF;
+    static final int MAX_INSERT = 0x7F;
+
+    public static byte[] serialize(ObjectId base, long baseSize, List<DeltaInstruction> ops) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(base.toByteArray());
+        writeVarint(out, baseSize);
+        writeVarint(out, DeltaDecoder.resultSize(ops));
 
-            for (DeltaInstruction op : ops) {
-                if (op.type() == DeltaInstruction.COPY) {
-                    CopyInstruction c = (CopyInstruction) op;
-                    out.write(("C " + c.offset + " " + c.length + "\n").getBytes());
+        for (DeltaInstruction op : ops) {
+            if (op.type() == DeltaInstruction.COPY) {
+                CopyInstruction c = (CopyInstruction) op;
+                int offset = c.offset;
+                int remaining = c.length;
+                while (remaining > 0) {
+                    int len = Math.min(remaining, MAX_COPY);
+                    writeCopy(out, offset, len);
+                    offset += len;
+                    remaining -= len;
                 }
-                else {
-                    InsertInstruction i = (InsertInstruction) op;
-                    out.write(("I " + i.data.length + "\n").getBytes());
-                    out.write(i.data);
-                    out.write('\n');
+            } else {
+                byte[] data = ((InsertInstruction) op).data;
+                for (int pos = 0; pos < data.length; pos += MAX_INSERT) {
+                    int len = Math.min(data.length - pos, MAX_INSERT);
+                    out.write(len);
+                    out.write(data, pos, len);
                 }
             }
-            return out.toByteArray();
         }
-        catch(Exception e) {
-            throw new RuntimeException("Failed to serialize delta", e);
+        return out.toByteArray();
+    }
+
+    private static void writeCopy(ByteArrayOutputStream out, int offset, int length) {
+        byte[] buf = new byte[8];
+        int n = 1;
+        int op = 0x80;
+        for (int i = 0; i < 4; i++) {
+            int b = (offset >>> (8 * i)) & 0xFF;
+            if (b != 0) {
+                op |= 1 << i;
+                buf[n++] = (byte) b;
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            int b = (length >>> (8 * i)) & 0xFF;
+            if (b != 0) {
+                op |= 0x10 << i;
+                buf[n++] = (byte) b;
+            }
+        }
+        buf[0] = (byte) op;
+        out.write(buf, 0, n);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
         }
+        out.write((int) v);
     }
 }
@@ -0,0 +1,75 @@
+package com.mygit.storage;
+
+/**
+ * A hex prefix of an object id, as typed by a user ("3f9a1c2"). Compares
+ * against full ids word by word so prefix searches never format hex.
+ */
+public final class AbbreviatedObjectId {
+    public static final int MIN_LENGTH = 4;
+
+    private final String prefix;
+    private final int[] words = new int[5];
+
+    private AbbreviatedObjectId(String prefix) {
+        this.prefix = prefix;
+        for (int i = 0; i < prefix.length(); i++) {
+            int shift = 28 - 4 * (i % 8);
+            words[i / 8] |= ObjectId.hexValue(prefix.charAt(i)) << shift;
+        }
+    }
+
+    /** Parses {@code s}, or returns null if it is not a hex prefix of usable length. */
+    public static AbbreviatedObjectId parse(String s) {
+        if (s == null || s.length() < MIN_LENGTH || s.length() > ObjectId.HEX_LENGTH)
+            return null;
+        for (int i = 0; i < s.length(); i++) {
+            if (ObjectId.hexValue(s.charAt(i)) < 0)
+                return null;
+        }
+        return new AbbreviatedObjectId(s.toLowerCase());
+    }
+
+    public int length() {
+        return prefix.length();
+    }
+
+    public boolean isComplete() {
+        return prefix.length() == ObjectId.HEX_LENGTH;
+    }
+
+    /** Value of the first byte (two hex digits) of every matching id. */
+    public int firstByte() {
+        return words[0] >>> 24;
+    }
+
+    /** First two hex digits: the loose object fan-out directory. */
+    public String fanOut() {
+        return prefix.substring(0, 2);
+    }
+
+    /**
+     * Compares {@code id}'s leading digits with this prefix: negative if the
+     * id sorts before every match, zero if it matches, positive if after.
+     */
+    public int prefixCompare(ObjectId id) {
+        int remaining = prefix.length();
+        for (int i = 0; i < 5 && remaining > 0; i++) {
+            int nibbles = Math.min(8, remaining);
+            int mask = nibbles == 8 ? -1 : ~(-1 >>> (4 * nibbles));
+            int c = Integer.compareUnsigned(id.word(i) & mask, words[i]);
+            if (c != 0)
+                return c;
+            remaining -= nibbles;
+        }
+        return 0;
+    }
+
+    public String name() {
+        return prefix;
+    }
+
+    @Override
+    public String toString() {
+        return prefix;
+    }
+}
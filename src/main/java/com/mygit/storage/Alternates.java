@@ -0,0 +1,203 @@
+package com.mygit.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mygit.pack.PackManager;
+
+/**
+ * Read-only object directories listed in {@code objects/info/alternates}, one
+ * path per line (relative paths are resolved against the objects directory).
+ * They are consulted only after the local store misses. Alternates are tried
+ * in order of recent hits, and ids that missed in all of them are remembered
+ * so repeated existence checks do not scan every alternate again. Shared per
+ * objects directory, like {@link ObjectCache}.
+ */
+public class Alternates {
+    private static final Map<Path, Alternates> SHARED = new ConcurrentHashMap<>();
+
+    private static final int MISSING_CACHE_SIZE = 4096;
+    private static final int REORDER_INTERVAL = 256;
+
+    private volatile Alternate[] ordered;
+    private final AtomicInteger hitsSinceReorder = new AtomicInteger();
+
+    private final Map<ObjectId, Boolean> missing = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ObjectId, Boolean> eldest) {
+            return size() > MISSING_CACHE_SIZE;
+        }
+    };
+
+    private Alternates(List<Path> dirs) {
+        Alternate[] alts = new Alternate[dirs.size()];
+        for (int i = 0; i < alts.length; i++)
+            alts[i] = new Alternate(dirs.get(i));
+        this.ordered = alts;
+    }
+
+    public static Alternates forDirectory(Path objectsDir) {
+        return SHARED.computeIfAbsent(objectsDir.toAbsolutePath().normalize(), Alternates::load);
+    }
+
+    private static Alternates load(Path objectsDir) {
+        Path file = objectsDir.resolve("info").resolve("alternates");
+        List<Path> dirs = new ArrayList<>();
+        if (Files.exists(file)) {
+            try {
+                for (String line : Files.readAllLines(file)) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#"))
+                        continue;
+
+                    Path dir = objectsDir.resolve(line).toAbsolutePath().normalize();
+                    if (!dir.equals(objectsDir) && Files.isDirectory(dir) && !dirs.contains(dir))
+                        dirs.add(dir);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read " + file, e);
+            }
+        }
+        return new Alternates(dirs);
+    }
+
+    public boolean isEmpty() {
+        return ordered.length == 0;
+    }
+
+    public boolean has(ObjectId id) {
+        if (isEmpty() || isKnownMissing(id))
+            return false;
+
+        for (Alternate alt : ordered) {
+            if (alt.has(id)) {
+                hit(alt);
+                return true;
+            }
+        }
+        synchronized (missing) {
+            missing.put(id, Boolean.TRUE);
+        }
+        return false;
+    }
+
+    /**
+     * Inflated object from the first alternate holding it, or null. Unlike
+     * {@link #has}, this ignores the missing-id cache, so an object that has
+     * since appeared in an alternate is still found.
+     */
+    public byte[] read(ObjectId id) {
+        for (Alternate alt : ordered) {
+            byte[] data = alt.read(id);
+            if (data != null) {
+                hit(alt);
+                forgetMissing(id);
+                return data;
+            }
+        }
+        return null;
+    }
+
+    public ObjectStore.ObjectHeader readHeader(ObjectId id) {
+        if (isEmpty() || isKnownMissing(id))
+            return null;
+
+        for (Alternate alt : ordered) {
+            ObjectStore.ObjectHeader header = alt.readHeader(id);
+            if (header != null) {
+                hit(alt);
+                return header;
+            }
+        }
+        return null;
+    }
+
+    public void findByPrefix(AbbreviatedObjectId prefix, ObjectIdSet out, int limit) {
+        for (Alternate alt : ordered) {
+            if (out.size() >= limit)
+                return;
+            alt.loose.findByPrefix(prefix, out, limit);
+            alt.packs.findByPrefix(prefix, out, limit);
+        }
+    }
+
+    private boolean isKnownMissing(ObjectId id) {
+        synchronized (missing) {
+            return missing.containsKey(id);
+        }
+    }
+
+    private void forgetMissing(ObjectId id) {
+        synchronized (missing) {
+            missing.remove(id);
+        }
+    }
+
+    private void hit(Alternate alt) {
+        alt.hits.incrementAndGet();
+        if (ordered.length > 1 && hitsSinceReorder.incrementAndGet() >= REORDER_INTERVAL)
+            reorder();
+    }
+
+    /** Re-sorts by hits and halves the counts, so the order tracks recent use. */
+    private synchronized void reorder() {
+        if (hitsSinceReorder.get() < REORDER_INTERVAL)
+            return;
+        hitsSinceReorder.set(0);
+
+        // Snapshot the counts first; they keep changing while we sort.
+        Alternate[] sorted = ordered.clone();
+        for (Alternate alt : sorted)
+            alt.rank = alt.hits.get();
+        Arrays.sort(sorted, (a, b) -> Long.compare(b.rank, a.rank));
+
+        for (Alternate alt : sorted)
+            alt.hits.addAndGet(-alt.rank / 2);
+        ordered = sorted;
+    }
+
+    private static class Alternate {
+        final Path objectsDir;
+        final LooseObjectIndex loose;
+        final PackManager packs;
+        final AtomicLong hits = new AtomicLong();
+        long rank;
+
+        Alternate(Path objectsDir) {
+            this.objectsDir = objectsDir;
+            this.loose = LooseObjectIndex.forDirectory(objectsDir);
+            this.packs = PackManager.forDirectory(objectsDir.resolve("pack"));
+        }
+
+        boolean has(ObjectId id) {
+            return packs.has(id) || Files.exists(ObjectStore.objectPath(objectsDir, id.name()));
+        }
+
+        byte[] read(ObjectId id) {
+            byte[] data = ObjectStore.readLoose(ObjectStore.objectPath(objectsDir, id.name()));
+            if (data != null)
+                return data;
+
+            data = packs.readFromPacks(id);
+            if (data == null && packs.rescan())
+                data = packs.readFromPacks(id);
+            return data;
+        }
+
+        ObjectStore.ObjectHeader readHeader(ObjectId id) {
+            ObjectStore.ObjectHeader header = ObjectStore.readLooseHeader(ObjectStore.objectPath(objectsDir, id.name()));
+            if (header != null)
+                return header;
+            return packs.readHeaderFromPacks(id);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.mygit.storage;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cached, sorted listings of the loose object fan-out directories
+ * ({@code objects/xx}), used for prefix lookups. A listing is re-read only
+ * when its directory's modification time changes. Shared per objects
+ * directory, like {@link ObjectCache}.
+ */
+public class LooseObjectIndex {
+    private static final Map<Path, LooseObjectIndex> SHARED = new ConcurrentHashMap<>();
+
+    private final Path objectsDir;
+    private final Map<String, Listing> listings = new ConcurrentHashMap<>();
+
+    public LooseObjectIndex(Path objectsDir) {
+        this.objectsDir = objectsDir;
+    }
+
+    public static LooseObjectIndex forDirectory(Path objectsDir) {
+        return SHARED.computeIfAbsent(objectsDir.toAbsolutePath().normalize(), LooseObjectIndex::new);
+    }
+
+    /** Adds up to {@code limit} loose ids starting with {@code prefix} to {@code out}. */
+    public void findByPrefix(AbbreviatedObjectId prefix, ObjectIdSet out, int limit) {
+        String fanOut = prefix.fanOut();
+        String[] names = listing(fanOut);
+
+        // Names are the 38 digits after the fan-out, so search on the rest.
+        String rest = prefix.name().substring(2);
+        int i = Arrays.binarySearch(names, rest);
+        if (i < 0)
+            i = -i - 1;
+        for (; i < names.length && out.size() < limit && names[i].startsWith(rest); i++) {
+            String hex = fanOut + names[i];
+            if (ObjectId.isId(hex))
+                out.add(ObjectId.fromHex(hex));
+        }
+    }
+
+    /** Adds the id of every loose object to {@code out}. */
+    public void findAll(ObjectIdSet out) {
+        for (int i = 0; i < 256; i++) {
+            String fanOut = String.format("%02x", i);
+            for (String rest : listing(fanOut)) {
+                String hex = fanOut + rest;
+                if (ObjectId.isId(hex))
+                    out.add(ObjectId.fromHex(hex));
+            }
+        }
+    }
+
+    private String[] listing(String fanOut) {
+        Path dir = objectsDir.resolve(fanOut);
+        try {
+            if (!Files.isDirectory(dir))
+                return new String[0];
+
+            FileTime modified = Files.getLastModifiedTime(dir);
+            Listing cached = listings.get(fanOut);
+            if (cached != null && cached.modified.equals(modified))
+                return cached.names;
+
+            List<String> names = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path p : ds) {
+                    String name = p.getFileName().toString();
+                    if (name.length() == ObjectId.HEX_LENGTH - 2)
+                        names.add(name);
+                }
+            }
+            String[] sorted = names.toArray(new String[0]);
+            Arrays.sort(sorted);
+            listings.put(fanOut, new Listing(modified, sorted));
+            return sorted;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list " + dir, e);
+        }
+    }
+
+    private static class Listing {
+        final FileTime modified;
+        final String[] names;
+
+        Listing(FileTime modified, String[] names) {
+            this.modified = modified;
+            this.names = names;
+        }
+    }
+}
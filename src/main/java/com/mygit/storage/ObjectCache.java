@@ -0,0 +1,151 @@
+package com.mygit.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mygit.util.Config;
+
+/**
+ * LRU cache of inflated objects, evicted by byte budget. Small objects stay on
+ * the heap; objects above {@code cache.bigObjectThreshold} go to an off-heap
+ * tier of direct buffers, which is off unless {@code cache.offHeapLimit} is set.
+ * One instance is shared per objects directory, so the short-lived stores
+ * opened by each command or UI refresh reuse the same working set.
+ */
+public class ObjectCache {
+
+    private static final long DEFAULT_HEAP_LIMIT = 32L * 1024 * 1024;
+    private static final long DEFAULT_BIG_OBJECT_THRESHOLD = 1024 * 1024;
+
+    private static final Map<Path, ObjectCache> SHARED = new ConcurrentHashMap<>();
+
+    private final Tier<byte[]> heap;
+    private final Tier<ByteBuffer> offHeap;
+    private final long bigObjectThreshold;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ObjectCache(long heapLimit, long offHeapLimit, long bigObjectThreshold) {
+        this.heap = new Tier<>(heapLimit);
+        this.offHeap = new Tier<>(offHeapLimit);
+        this.bigObjectThreshold = bigObjectThreshold;
+    }
+
+    public static ObjectCache forDirectory(Path objectsDir) {
+        return SHARED.computeIfAbsent(objectsDir.toAbsolutePath().normalize(), k -> fromConfig());
+    }
+
+    private static ObjectCache fromConfig() {
+        return new ObjectCache(
+                Config.getLong("cache.heapLimit", DEFAULT_HEAP_LIMIT),
+                Config.getLong("cache.offHeapLimit", 0),
+                Config.getLong("cache.bigObjectThreshold", DEFAULT_BIG_OBJECT_THRESHOLD));
+    }
+
+    /**
+     * Returns the cached object or null. Heap entries are returned as-is and
+     * must not be modified by the caller.
+     */
+    public byte[] get(ObjectId id) {
+        byte[] data = heap.get(id);
+        if (data == null) {
+            ByteBuffer buf = offHeap.get(id);
+            if (buf != null) {
+                data = new byte[buf.capacity()];
+                buf.duplicate().get(data);
+            }
+        }
+
+        if (data != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return data;
+    }
+
+    public void put(ObjectId id, byte[] data) {
+        if (data.length <= bigObjectThreshold) {
+            heap.put(id, data, data.length);
+        } else if (data.length <= offHeap.limit) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(data.length);
+            buf.put(data).flip();
+            offHeap.put(id, buf, data.length);
+        }
+    }
+
+    public void clear() {
+        heap.clear();
+        offHeap.clear();
+    }
+
+    public long hitCount() {
+        return hits.get();
+    }
+
+    public long missCount() {
+        return misses.get();
+    }
+
+    public long heapBytes() {
+        return heap.bytes();
+    }
+
+    public long offHeapBytes() {
+        return offHeap.bytes();
+    }
+
+    private static class Tier<V> {
+        private final long limit;
+        private final LinkedHashMap<ObjectId, Entry<V>> entries = new LinkedHashMap<>(64, 0.75f, true);
+        private long bytes;
+
+        Tier(long limit) {
+            this.limit = limit;
+        }
+
+        synchronized V get(ObjectId id) {
+            Entry<V> e = entries.get(id);
+            return e == null ? null : e.value;
+        }
+
+        synchronized void put(ObjectId id, V value, long size) {
+            if (size > limit || entries.containsKey(id))
+                return;
+
+            entries.put(id, new Entry<>(value, size));
+            bytes += size;
+
+            Iterator<Entry<V>> it = entries.values().iterator();
+            while (bytes > limit && it.hasNext()) {
+                bytes -= it.next().size;
+                it.remove();
+            }
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            bytes = 0;
+        }
+
+        synchronized long bytes() {
+            return bytes;
+        }
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long size;
+
+        Entry(V value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.mygit.storage;
+
+import java.util.Arrays;
+
+/**
+ * Immutable 20-byte SHA-1 object id, held as five ints instead of a 40-char
+ * hex String. Used as the key type for storage, pack and walk code.
+ */
+public final class ObjectId implements Comparable<ObjectId> {
+    public static final int RAW_LENGTH = 20;
+    public static final int HEX_LENGTH = 40;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final byte[] HEX_VALUE = new byte['f' + 1];
+
+    static {
+        Arrays.fill(HEX_VALUE, (byte) -1);
+        for (int i = 0; i < 10; i++)
+            HEX_VALUE['0' + i] = (byte) i;
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUE['a' + i] = (byte) (10 + i);
+            HEX_VALUE['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private final int w1;
+    private final int w2;
+    private final int w3;
+    private final int w4;
+    private final int w5;
+
+    private ObjectId(int w1, int w2, int w3, int w4, int w5) {
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        this.w4 = w4;
+        this.w5 = w5;
+    }
+
+    public static ObjectId fromRaw(byte[] raw) {
+        return fromRaw(raw, 0);
+    }
+
+    public static ObjectId fromRaw(byte[] raw, int off) {
+        return new ObjectId(
+                readInt(raw, off),
+                readInt(raw, off + 4),
+                readInt(raw, off + 8),
+                readInt(raw, off + 12),
+                readInt(raw, off + 16));
+    }
+
+    public static ObjectId fromHex(String hex) {
+        if (!isId(hex))
+            throw new IllegalArgumentException("Invalid object id: " + hex);
+        return new ObjectId(
+                parseInt(hex, 0),
+                parseInt(hex, 8),
+                parseInt(hex, 16),
+                parseInt(hex, 24),
+                parseInt(hex, 32));
+    }
+
+    public static boolean isId(String s) {
+        if (s == null || s.length() != HEX_LENGTH)
+            return false;
+        for (int i = 0; i < HEX_LENGTH; i++) {
+            if (hexValue(s.charAt(i)) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** Value of one hex digit, or -1 if {@code c} is not a hex digit. */
+    public static int hexValue(char c) {
+        return c < HEX_VALUE.length ? HEX_VALUE[c] : -1;
+    }
+
+    public String name() {
+        char[] out = new char[HEX_LENGTH];
+        formatInt(out, 0, w1);
+        formatInt(out, 8, w2);
+        formatInt(out, 16, w3);
+        formatInt(out, 24, w4);
+        formatInt(out, 32, w5);
+        return new String(out);
+    }
+
+    public byte[] toByteArray() {
+        byte[] raw = new byte[RAW_LENGTH];
+        copyRawTo(raw, 0);
+        return raw;
+    }
+
+    public void copyRawTo(byte[] dst, int off) {
+        writeInt(dst, off, w1);
+        writeInt(dst, off + 4, w2);
+        writeInt(dst, off + 8, w3);
+        writeInt(dst, off + 12, w4);
+        writeInt(dst, off + 16, w5);
+    }
+
+    public int firstByte() {
+        return w1 >>> 24;
+    }
+
+    /** Returns the {@code i}-th 32-bit word of the id (0..4). */
+    public int word(int i) {
+        switch (i) {
+            case 0:
+                return w1;
+            case 1:
+                return w2;
+            case 2:
+                return w3;
+            case 3:
+                return w4;
+            case 4:
+                return w5;
+            default:
+                throw new IndexOutOfBoundsException("word " + i);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        // SHA-1 bits are uniformly distributed; any word is a good hash.
+        return w2;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof ObjectId))
+            return false;
+        ObjectId other = (ObjectId) o;
+        return w1 == other.w1 && w2 == other.w2 && w3 == other.w3 && w4 == other.w4 && w5 == other.w5;
+    }
+
+    @Override
+    public int compareTo(ObjectId o) {
+        int c = Integer.compareUnsigned(w1, o.w1);
+        if (c != 0)
+            return c;
+        c = Integer.compareUnsigned(w2, o.w2);
+        if (c != 0)
+            return c;
+        c = Integer.compareUnsigned(w3, o.w3);
+        if (c != 0)
+            return c;
+        c = Integer.compareUnsigned(w4, o.w4);
+        if (c != 0)
+            return c;
+        return Integer.compareUnsigned(w5, o.w5);
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return (b[off] & 0xFF) << 24
+                | (b[off + 1] & 0xFF) << 16
+                | (b[off + 2] & 0xFF) << 8
+                | (b[off + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static int parseInt(String hex, int off) {
+        int v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 4) | HEX_VALUE[hex.charAt(off + i)];
+        }
+        return v;
+    }
+
+    private static void formatInt(char[] out, int off, int v) {
+        for (int i = 7; i >= 0; i--) {
+            out[off + i] = HEX[v & 0xF];
+            v >>>= 4;
+        }
+    }
+}
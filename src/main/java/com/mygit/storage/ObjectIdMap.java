@@ -0,0 +1,83 @@
+package com.mygit.storage;
+
+/**
+ * Open-addressing hash map keyed by {@link ObjectId}, with keys and values in
+ * parallel arrays. Lookups never allocate.
+ */
+public class ObjectIdMap<V> {
+    private ObjectId[] keys;
+    private Object[] values;
+    private int size;
+
+    public ObjectIdMap() {
+        this(64);
+    }
+
+    public ObjectIdMap(int expected) {
+        int cap = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+        this.keys = new ObjectId[cap];
+        this.values = new Object[cap];
+    }
+
+    /** Associates {@code value} with {@code id}; returns the previous value or null. */
+    @SuppressWarnings("unchecked")
+    public V put(ObjectId id, V value) {
+        if ((size + 1) * 4 > keys.length * 3)
+            grow();
+
+        int mask = keys.length - 1;
+        int i = id.hashCode() & mask;
+        while (keys[i] != null) {
+            if (keys[i].equals(id)) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = id;
+        values[i] = value;
+        size++;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(ObjectId id) {
+        int mask = keys.length - 1;
+        int i = id.hashCode() & mask;
+        while (keys[i] != null) {
+            if (keys[i].equals(id))
+                return (V) values[i];
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean containsKey(ObjectId id) {
+        int mask = keys.length - 1;
+        int i = id.hashCode() & mask;
+        while (keys[i] != null) {
+            if (keys[i].equals(id))
+                return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void grow() {
+        ObjectId[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new ObjectId[oldKeys.length << 1];
+        values = new Object[oldKeys.length << 1];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null)
+                put(oldKeys[i], (V) oldValues[i]);
+        }
+    }
+}
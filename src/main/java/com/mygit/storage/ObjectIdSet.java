@@ -0,0 +1,101 @@
+package com.mygit.storage;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Open-addressing hash set of {@link ObjectId}s with linear probing. Avoids the
+ * per-entry node and String allocations of a {@code HashSet<String>}, which
+ * dominate memory when walking large histories.
+ */
+public class ObjectIdSet implements Iterable<ObjectId> {
+    private ObjectId[] table;
+    private int size;
+
+    public ObjectIdSet() {
+        this(64);
+    }
+
+    public ObjectIdSet(int expected) {
+        int cap = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+        this.table = new ObjectId[cap];
+    }
+
+    /** Adds {@code id}; returns false if it was already present. */
+    public boolean add(ObjectId id) {
+        if ((size + 1) * 4 > table.length * 3)
+            grow();
+
+        int mask = table.length - 1;
+        int i = id.hashCode() & mask;
+        while (table[i] != null) {
+            if (table[i].equals(id))
+                return false;
+            i = (i + 1) & mask;
+        }
+        table[i] = id;
+        size++;
+        return true;
+    }
+
+    public void addAll(ObjectIdSet other) {
+        for (ObjectId id : other)
+            add(id);
+    }
+
+    public boolean contains(ObjectId id) {
+        int mask = table.length - 1;
+        int i = id.hashCode() & mask;
+        while (table[i] != null) {
+            if (table[i].equals(id))
+                return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void grow() {
+        ObjectId[] old = table;
+        table = new ObjectId[old.length << 1];
+        size = 0;
+        for (ObjectId id : old) {
+            if (id != null)
+                add(id);
+        }
+    }
+
+    @Override
+    public Iterator<ObjectId> iterator() {
+        return new Iterator<ObjectId>() {
+            private int pos = advance(0);
+
+            private int advance(int from) {
+                while (from < table.length && table[from] == null)
+                    from++;
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return pos < table.length;
+            }
+
+            @Override
+            public ObjectId next() {
+                if (pos >= table.length)
+                    throw new NoSuchElementException();
+                ObjectId id = table[pos];
+                pos = advance(pos + 1);
+                return id;
+            }
+        };
+    }
+}
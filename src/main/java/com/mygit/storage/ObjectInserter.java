@@ -0,0 +1,204 @@
+package com.mygit.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+import com.mygit.codec.CompressionPolicy;
+import com.mygit.codec.ZlibCodec;
+import com.mygit.pack.MultiPackIndex;
+import com.mygit.pack.PackIndex;
+import com.mygit.util.Config;
+import com.mygit.util.HashUtils;
+import com.mygit.util.ThreadPool;
+
+/**
+ * Batched object writer for bulk operations. Objects are hashed and deflated
+ * on the shared worker pool and held in memory; {@link #flush()} writes them
+ * all into one new pack and index instead of one loose file each. Until then
+ * they are readable through the {@link ObjectStore} that opened the inserter.
+ * Each queued object reserves its uncompressed size against
+ * {@code inserter.bufferLimit} when it is submitted; once the reservations
+ * pass the limit, the next insert first flushes everything queued so far,
+ * so a caller that outruns the workers cannot buffer without bound.
+ * Batches smaller than {@code inserter.looseLimit} objects are written loose
+ * rather than as a pack of their own.
+ * Closing without flushing discards whatever is still buffered.
+ */
+public class ObjectInserter implements AutoCloseable {
+    private static final long DEFAULT_BUFFER_LIMIT = 64L * 1024 * 1024;
+    private static final long DEFAULT_LOOSE_LIMIT = 100;
+
+    private final ObjectStore store;
+    private final Path packDir;
+    private final CompressionPolicy compression;
+    private final long bufferLimit;
+    private final long looseLimit;
+
+    // Compressed "type size\0data" of every object not yet flushed.
+    private final Map<ObjectId, byte[]> pending = new ConcurrentHashMap<>();
+    // Uncompressed bytes submitted since the last flush, finished or not.
+    private long reservedBytes;
+    private final List<Future<ObjectId>> inFlight = new ArrayList<>();
+
+    ObjectInserter(ObjectStore store, Path objectsDir, CompressionPolicy compression) {
+        this.store = store;
+        this.packDir = objectsDir.resolve("pack");
+        this.compression = compression;
+        this.bufferLimit = Config.getLong("inserter.bufferLimit", DEFAULT_BUFFER_LIMIT);
+        this.looseLimit = Config.getLong("inserter.looseLimit", DEFAULT_LOOSE_LIMIT);
+    }
+
+    /** Queues an object; the future yields its id once hashed and compressed. */
+    public Future<ObjectId> insert(String type, byte[] body) {
+        return submit(body.length, () -> add(type, body));
+    }
+
+    /** Queues a file's content as a blob, read on a worker thread. */
+    public Future<ObjectId> insertBlob(Path file) {
+        long size;
+        try {
+            size = Files.size(file);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read file: " + file, e);
+        }
+        return submit(size, () -> add("blob", Files.readAllBytes(file)));
+    }
+
+    private synchronized Future<ObjectId> submit(long size, Callable<ObjectId> task) {
+        if (reservedBytes > 0 && reservedBytes + size > bufferLimit)
+            flush();
+        reservedBytes += size;
+        Future<ObjectId> f = ThreadPool.get().submit(task);
+        inFlight.add(f);
+        return f;
+    }
+
+    private ObjectId add(String type, byte[] body) {
+        byte[] raw = ObjectStore.encode(type, body);
+        ObjectId id = ObjectId.fromRaw(HashUtils.sha1(raw));
+        if (pending.containsKey(id) || store.has(id))
+            return id;
+
+        byte[] compressed = ZlibCodec.deflate(raw, compression.levelFor(type, body, 0, body.length));
+        pending.putIfAbsent(id, compressed);
+        return id;
+    }
+
+    boolean has(ObjectId id) {
+        return pending.containsKey(id);
+    }
+
+    /** Inflated object if it is still buffered here, else null. */
+    byte[] read(ObjectId id) {
+        byte[] compressed = pending.get(id);
+        return compressed == null ? null : ZlibCodec.inflateObject(compressed);
+    }
+
+    /**
+     * Waits for queued objects and writes everything buffered into a new
+     * pack. Returns the pack path, or null if nothing was packed.
+     */
+    public synchronized Path flush() {
+        try {
+            for (Future<ObjectId> f : inFlight)
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while inserting objects", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to insert object", e.getCause());
+        } finally {
+            inFlight.clear();
+            reservedBytes = 0;
+        }
+
+        if (pending.isEmpty())
+            return null;
+
+        if (pending.size() < looseLimit) {
+            for (Map.Entry<ObjectId, byte[]> e : pending.entrySet())
+                store.writeLoose(e.getKey(), e.getValue());
+            pending.clear();
+            return null;
+        }
+
+        List<ObjectId> ids = new ArrayList<>(pending.keySet());
+        ids.sort(null);
+
+        Path tmpPack = packDir.resolve(".tmp-" + UUID.randomUUID() + ".pack");
+        try {
+            Files.createDirectories(packDir);
+
+            MessageDigest md = HashUtils.sha1Digest();
+            Map<ObjectId, Long> offsets = new LinkedHashMap<>();
+            Map<ObjectId, Integer> crcs = new HashMap<>();
+            CRC32C crc = new CRC32C();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(tmpPack, StandardOpenOption.CREATE_NEW), 1 << 16))) {
+                out.write("PACK".getBytes());
+                out.writeInt(1);
+                out.writeInt(ids.size());
+
+                long offset = 4 + 4 + 4;
+                for (ObjectId id : ids) {
+                    byte[] raw = id.toByteArray();
+                    byte[] comp = pending.get(id);
+                    offsets.put(id, offset);
+                    crc.reset();
+                    crc.update(comp);
+                    crcs.put(id, (int) crc.getValue());
+                    out.write(raw);
+                    out.writeInt(comp.length);
+                    out.write(comp);
+                    md.update(raw);
+                    offset += raw.length + 4 + comp.length;
+                }
+            }
+
+            String name = "pack-" + HashUtils.toHex(md.digest());
+            Path packPath = packDir.resolve(name + ".pack");
+            Path idxPath = packDir.resolve(name + ".idx");
+
+            // Pack first: PackManager ignores an index whose pack is missing.
+            ObjectStore.moveAtomic(tmpPack, packPath);
+            PackIndex.write(idxPath, offsets, crcs);
+            MultiPackIndex.update(packDir);
+
+            store.rescanPacks();
+            pending.clear();
+            return packPath;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write pack", e);
+        } finally {
+            try {
+                Files.deleteIfExists(tmpPack);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Future<ObjectId> f : inFlight)
+            f.cancel(false);
+        inFlight.clear();
+        pending.clear();
+        store.closed(this);
+    }
+}
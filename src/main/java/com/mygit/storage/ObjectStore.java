@@ -2,82 +2,393 @@ package com.mygit.storage;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
+import com.mygit.codec.CompressionPolicy;
+import com.mygit.codec.ZlibCodec;
 import com.mygit.pack.PackManager;
 import com.mygit.util.HashUtils;
-import com.mygit.util.IOUtils;
 
 public class ObjectStore {
 
+    private static final int MAX_CANDIDATES = 10;
+
     private final Path gitDir;
     private final Path objectsDir;
     private final PackManager packManager;
+    private final ObjectCache cache;
+    private final LooseObjectIndex looseIndex;
+    private final Alternates alternates;
+    private final CompressionPolicy compression;
+    private final List<ObjectInserter> inserters = new CopyOnWriteArrayList<>();
 
     public ObjectStore(Path gitDir) {
         this.gitDir = gitDir;
         this.objectsDir = gitDir.resolve("objects");
-        this.packManager = new PackManager(objectsDir.resolve("pack"));
+        this.packManager = PackManager.forDirectory(objectsDir.resolve("pack"));
+        this.cache = ObjectCache.forDirectory(objectsDir);
+        this.looseIndex = LooseObjectIndex.forDirectory(objectsDir);
+        this.alternates = Alternates.forDirectory(objectsDir);
+        this.compression = CompressionPolicy.fromConfig();
     }
 
     public static ObjectStore openDefault() {
         return new ObjectStore(Paths.get(".mygit"));
     }
 
-    public String writeBlob(byte[] data) {
-        String header = "blob " + data.length + "\0";
-        byte[] store = concat(header.getBytes(), data);
-        return writeObject(store);
+    /** Opens a batched writer; see {@link ObjectInserter}. */
+    public ObjectInserter newInserter() {
+        ObjectInserter inserter = new ObjectInserter(this, objectsDir, compression);
+        inserters.add(inserter);
+        return inserter;
     }
 
-    private String writeObject(byte[] store) {
-        byte[] shaBytes = HashUtils.sha1(store);
-        String shaHex = HashUtils.toHex(shaBytes);
+    void closed(ObjectInserter inserter) {
+        inserters.remove(inserter);
+    }
 
-        byte[] compressed = IOUtils.zlibCompress(store);
+    /** Picks up packs written since this store was opened. */
+    public void rescanPacks() {
+        packManager.rescan();
+    }
 
-        Path objPath = objectPath(shaHex);
+    public String writeBlob(byte[] data) {
+        return writeObject("blob", data);
+    }
+
+    public String writeBlob(Path file) {
+        try (InputStream in = Files.newInputStream(file)) {
+            return writeBlob(in, Files.size(file));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + file, e);
+        }
+    }
+
+    /**
+     * Hashes and deflates a blob in a single pass, straight into a temp file
+     * next to the loose objects, so memory use does not depend on the blob
+     * size. {@code size} must be the exact number of bytes left in {@code in}.
+     */
+    public String writeBlob(InputStream in, long size) {
+        Path tmp = objectsDir.resolve(".tmp-" + UUID.randomUUID().toString());
 
         try {
-            if (Files.exists(objPath))
-                return shaHex;
+            Files.createDirectories(objectsDir);
+            MessageDigest md = HashUtils.sha1Digest();
+            Deflater deflater = ZlibCodec.deflater(compression.levelFor("blob"));
+
+            try (OutputStream out = new DeflaterOutputStream(
+                    Files.newOutputStream(tmp, StandardOpenOption.CREATE_NEW), deflater, 8192)) {
+                byte[] header = ("blob " + size + "\0").getBytes();
+                md.update(header);
+
+                byte[] buffer = new byte[8192];
+                int n = in.readNBytes(buffer, 0, buffer.length);
+                // Pick the level from the first chunk, before anything is deflated.
+                deflater.setLevel(compression.levelFor("blob", buffer, 0, n));
+                out.write(header);
+
+                long total = 0;
+                while (n > 0) {
+                    md.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                    total += n;
+                    n = in.read(buffer);
+                }
+                if (total != size) {
+                    throw new IOException("Size mismatch: expected=" + size + " actual=" + total);
+                }
+            }
+
+            String shaHex = HashUtils.toHex(md.digest());
+            Path objPath = objectPath(shaHex);
+            if (!Files.exists(objPath)) {
+                Files.createDirectories(objPath.getParent());
+                moveAtomic(tmp, objPath);
+            }
+            return shaHex;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to write object", e);
+        } finally {
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private String writeObject(String type, byte[] body) {
+        byte[] store = encode(type, body);
+        ObjectId id = ObjectId.fromRaw(HashUtils.sha1(store));
+        String shaHex = id.name();
 
+        // Packed or already loose: skip the deflate and the write entirely.
+        if (has(id))
+            return shaHex;
+
+        int level = compression.levelFor(type, body, 0, body.length);
+        writeLoose(id, ZlibCodec.deflate(store, level));
+        return shaHex;
+    }
+
+    void writeLoose(ObjectId id, byte[] compressed) {
+        Path objPath = objectPath(id.name());
+
+        try {
             Files.createDirectories(objPath.getParent());
 
             writeAtomic(objPath, compressed);
-            return shaHex;
         } catch (Exception e) {
             throw new RuntimeException("Failed to write object", e);
         }
     }
 
+    /**
+     * Cheap existence check over loose objects, every pack and then the
+     * alternates. Packs answer most misses from their Bloom filter without
+     * touching the index.
+     */
+    public boolean has(String shaHex) {
+        return ObjectId.isId(shaHex) && has(ObjectId.fromHex(shaHex));
+    }
+
+    public boolean has(ObjectId id) {
+        return hasLocal(id) || alternates.has(id);
+    }
+
+    /** Like {@link #has(ObjectId)}, but ignores the alternates. */
+    public boolean hasLocal(ObjectId id) {
+        for (ObjectInserter ins : inserters) {
+            if (ins.has(id))
+                return true;
+        }
+        return Files.exists(objectPath(id.name())) || packManager.has(id);
+    }
+
+    /**
+     * Resolves a full or abbreviated (at least 4 digit) hex id, or returns
+     * null if no object matches. If {@code type} is non-null, only objects of
+     * that type count. Throws if the prefix is ambiguous, listing at most
+     * {@code MAX_CANDIDATES} of the matches.
+     */
+    public ObjectId resolve(String name, String type) {
+        AbbreviatedObjectId prefix = AbbreviatedObjectId.parse(name);
+        if (prefix == null)
+            return null;
+
+        ObjectIdSet found = new ObjectIdSet();
+        if (prefix.isComplete()) {
+            ObjectId id = ObjectId.fromHex(name);
+            if (has(id))
+                found.add(id);
+        } else {
+            // A capped search could miss the one match of the wanted type, so
+            // only cap it when every object counts.
+            int limit = type == null ? MAX_CANDIDATES : Integer.MAX_VALUE;
+            looseIndex.findByPrefix(prefix, found, limit);
+            packManager.findByPrefix(prefix, found, limit);
+            alternates.findByPrefix(prefix, found, limit);
+        }
+
+        List<ObjectId> matches = new ArrayList<>();
+        for (ObjectId id : found) {
+            if (type == null || type.equals(readHeader(id).type))
+                matches.add(id);
+            if (matches.size() == MAX_CANDIDATES)
+                break;
+        }
+
+        if (matches.isEmpty())
+            return null;
+        if (matches.size() > 1) {
+            StringBuilder sb = new StringBuilder("Ambiguous object name: " + name + "\nCandidates:");
+            for (ObjectId id : matches)
+                sb.append("\n  ").append(id.name());
+            throw new RuntimeException(sb.toString());
+        }
+        return matches.get(0);
+    }
+
+    /**
+     * Returns the inflated object ("type size\0data"). The array may be shared
+     * with the object cache and must not be modified.
+     */
     public byte[] readObject(String shaHex) {
-        Path objPath = objectsDir.resolve(shaHex.substring(0, 2)).resolve(shaHex.substring(2));
+        if (!ObjectId.isId(shaHex))
+            throw new RuntimeException("Object not found: " + shaHex);
+        return readObject(ObjectId.fromHex(shaHex));
+    }
 
-        try {
-            if (Files.exists(objPath)) {
-                byte[] compressed = Files.readAllBytes(objPath);
-                return IOUtils.zlibDecompress(compressed);
-            }
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to read loose object", e);
+    public byte[] readObject(ObjectId id) {
+        byte[] cached = cache.get(id);
+        if (cached != null)
+            return cached;
+
+        byte[] store = readObjectFromDisk(id);
+        cache.put(id, store);
+        return store;
+    }
+
+    public ObjectCache getCache() {
+        return cache;
+    }
+
+    public Path getObjectsDir() {
+        return objectsDir;
+    }
+
+    public PackManager getPackManager() {
+        return packManager;
+    }
+
+    private byte[] readObjectFromDisk(ObjectId id) {
+        for (ObjectInserter ins : inserters) {
+            byte[] buffered = ins.read(id);
+            if (buffered != null)
+                return buffered;
         }
 
-        byte[] packed = packManager.readFromPacks(shaHex);
+        byte[] loose = readLoose(objectPath(id.name()));
+        if (loose != null)
+            return loose;
+
+        byte[] packed = packManager.readFromPacks(id);
+        // Another process or inserter may have written a pack since we opened.
+        if (packed == null && packManager.rescan())
+            packed = packManager.readFromPacks(id);
 
         if (packed != null) {
             return packed;
         }
 
-        throw new RuntimeException("Object not found: " + shaHex);
+        byte[] borrowed = alternates.read(id);
+        if (borrowed != null)
+            return borrowed;
+
+        throw new RuntimeException("Object not found: " + id);
+
+    }
+
+    public ObjectHeader readHeader(String shaHex) {
+        if (!ObjectId.isId(shaHex))
+            throw new RuntimeException("Object not found: " + shaHex);
+        return readHeader(ObjectId.fromHex(shaHex));
+    }
+
+    /**
+     * Returns an object's type and size without inflating its body. Loose
+     * objects and packed entries are only inflated up to the end of the
+     * "type size\0" header.
+     */
+    public ObjectHeader readHeader(ObjectId id) {
+        byte[] cached = cache.get(id);
+        if (cached != null)
+            return headerOf(cached);
+
+        ObjectHeader loose = readLooseHeader(objectPath(id.name()));
+        if (loose != null)
+            return loose;
+
+        ObjectHeader packed = packManager.readHeaderFromPacks(id);
+        if (packed != null)
+            return packed;
+
+        ObjectHeader borrowed = alternates.readHeader(id);
+        if (borrowed != null)
+            return borrowed;
+
+        // Not found, or a packed delta whose header only exists once resolved.
+        return headerOf(readObject(id));
+    }
+
+    /** Inflated loose object at {@code objPath}, or null if there is none. */
+    static byte[] readLoose(Path objPath) {
+        try {
+            if (!Files.exists(objPath))
+                return null;
+            return ZlibCodec.inflateObject(Files.readAllBytes(objPath));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read loose object", e);
+        }
+    }
+
+    /** Header of the loose object at {@code objPath}, or null if there is none. */
+    static ObjectHeader readLooseHeader(Path objPath) {
+        if (!Files.exists(objPath))
+            return null;
+        try (InputStream in = new InflaterInputStream(Files.newInputStream(objPath), ZlibCodec.inflater())) {
+            ObjectHeader header = parseHeader(in);
+            if (header == null)
+                throw new RuntimeException("Invalid object header (no header)");
+            return header;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read loose object", e);
+        }
+    }
+
+    /**
+     * Reads a "type size\0" header from the start of an inflated object stream.
+     * Returns null if the stream does not start with a valid header.
+     */
+    public static ObjectHeader parseHeader(InputStream in) throws IOException {
+        byte[] buf = new byte[32];
+        int len = 0;
+        int b;
+        while ((b = in.read()) > 0) {
+            if (len == buf.length)
+                return null;
+            buf[len++] = (byte) b;
+        }
+        if (b != 0)
+            return null;
+        return parseHeader(buf, len);
+    }
 
+    private static ObjectHeader headerOf(byte[] store) {
+        int i = 0;
+        while (i < store.length && store[i] != 0)
+            i++;
+
+        if (i == store.length)
+            throw new RuntimeException("Invalid object header (no header)");
+
+        ObjectHeader header = parseHeader(store, i);
+        if (header == null)
+            throw new RuntimeException("Invalid header: " + new String(store, 0, i));
+        return header;
+    }
+
+    private static ObjectHeader parseHeader(byte[] buf, int len) {
+        int sp = 0;
+        while (sp < len && buf[sp] != ' ')
+            sp++;
+        if (sp == 0 || sp >= len - 1)
+            return null;
+
+        long size = 0;
+        for (int i = sp + 1; i < len; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9)
+                return null;
+            size = size * 10 + d;
+        }
+        return new ObjectHeader(new String(buf, 0, sp), size);
     }
 
     public ParseObject parseObject(byte[] store) {
@@ -107,9 +418,7 @@ public class ObjectStore {
     }
 
     public String writeTree(byte[] treeStore) {
-        String header = "tree " + treeStore.length + "\0";
-        byte[] store = concat(header.getBytes(), treeStore);
-        return writeObject(store);
+        return writeObject("tree", treeStore);
     }
 
     /**
@@ -135,18 +444,25 @@ public class ObjectStore {
         sb.append(message).append("\n");
 
         byte[] payload = sb.toString().getBytes();
-        String header = "commit " + payload.length + "\0";
-        byte[] store = concat(header.getBytes(), payload);
-
-        return writeObject(store);
+        return writeObject("commit", payload);
     }
 
     private Path objectPath(String shaHex) {
+        return objectPath(objectsDir, shaHex);
+    }
+
+    static Path objectPath(Path objectsDir, String shaHex) {
         String a = shaHex.substring(0, 2);
         String b = shaHex.substring(2);
         return objectsDir.resolve(a).resolve(b);
     }
 
+    /** Raw object bytes: "type size\0" followed by {@code body}. */
+    static byte[] encode(String type, byte[] body) {
+        byte[] header = (type + " " + body.length + "\0").getBytes();
+        return concat(header, body);
+    }
+
     private static byte[] concat(byte[] a, byte[] b) {
         try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
             out.write(a);
@@ -163,7 +479,10 @@ public class ObjectStore {
         Files.createDirectories(parent);
         Path tmp = parent.resolve(".tmp-" + UUID.randomUUID().toString());
         Files.write(tmp, data, StandardOpenOption.CREATE_NEW);
+        moveAtomic(tmp, target);
+    }
 
+    static void moveAtomic(Path tmp, Path target) throws IOException {
         try {
             Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
         } catch (AtomicMoveNotSupportedException ex) {
@@ -171,6 +490,16 @@ public class ObjectStore {
         }
     }
 
+    public static class ObjectHeader {
+        public final String type;
+        public final long size;
+
+        public ObjectHeader(String type, long size) {
+            this.type = type;
+            this.size = size;
+        }
+    }
+
     public static class ParseObject {
         public final String type;
         public final byte[] data;
@@ -1,21 +1,22 @@
 package com.mygit.storage;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
-import com.mygit.util.HashUtils;
-
 public class TreeReader {
     public static class TreeEntry {
         public final String mode;
         public final String name;
-        public final String shaHex;
+        public final ObjectId id;
 
-        public TreeEntry(String mode, String name, String shaHex) {
+        public TreeEntry(String mode, String name, ObjectId id) {
             this.mode = mode;
             this.name = name;
-            this.shaHex = shaHex;
+            this.id = id;
+        }
+
+        public String shaHex() {
+            return id.name();
         }
 
         public boolean isTree() {
@@ -30,11 +31,15 @@ public class TreeReader {
     }
 
     public List<TreeEntry> readTree(String treeSha) {
-        byte[] storeBytes = store.readObject(treeSha);
+        return readTree(ObjectId.fromHex(treeSha));
+    }
+
+    public List<TreeEntry> readTree(ObjectId treeId) {
+        byte[] storeBytes = store.readObject(treeId);
         ObjectStore.ParseObject po = store.parseObject(storeBytes);
 
         if (!"tree".equals(po.type)) {
-            throw new RuntimeException("Object is not a tree: " + treeSha);
+            throw new RuntimeException("Object is not a tree: " + treeId);
         }
 
         byte[] data = po.data;
@@ -54,11 +59,10 @@ public class TreeReader {
             String name = new String(data, start, i - start);
             i++;
 
-            byte[] shaBytes = Arrays.copyOfRange(data, i, i + 20);
-            i += 20;
-            String shaHex = HashUtils.toHex(shaBytes);
+            ObjectId id = ObjectId.fromRaw(data, i);
+            i += ObjectId.RAW_LENGTH;
 
-            entries.add(new TreeEntry(mode, name, shaHex));
+            entries.add(new TreeEntry(mode, name, id));
         }
         return entries;
     }
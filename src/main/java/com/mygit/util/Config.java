@@ -43,6 +43,17 @@ public class Config {
         return out;
     }
 
+    public static long getLong(String key, long defaultValue) {
+        String value = readUser().get(key);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Invalid number for " + key + ": " + value);
+        }
+    }
+
     public static String userName() {
         return readUser().getOrDefault("user.name", "User");
     }
@@ -3,6 +3,8 @@ package com.mygit.util;
 import java.security.MessageDigest;
 
 public class HashUtils {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
     public static byte[] sha1(byte[] data) {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-1");
@@ -12,16 +14,25 @@ public class HashUtils {
         }
     }
 
+    public static MessageDigest sha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (Exception e) {
+            throw new RuntimeException("SHA-1 not available", e);
+        }
+    }
+
     public static byte[] fromHex(String hex) {
         return hexToBytes(hex);
     }
 
     public static String toHex(byte[] hash) {
-        StringBuilder sb = new StringBuilder(hash.length * 2);
-        for (byte b : hash) {
-            sb.append(String.format("%02x", b & 0xff));
+        char[] out = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            out[2 * i] = HEX[(hash[i] >>> 4) & 0xF];
+            out[2 * i + 1] = HEX[hash[i] & 0xF];
         }
-        return sb.toString();
+        return new String(out);
     }
 
     public static byte[] hexToBytes(String hex) {
@@ -32,7 +43,12 @@ public class HashUtils {
         byte[] out = new byte[hex.length() / 2];
 
         for (int i = 0; i < hex.length(); i += 2) {
-            out[i / 2] = (byte) Integer.parseInt(hex.substring(i, i + 2), 16);
+            int hi = Character.digit(hex.charAt(i), 16);
+            int lo = Character.digit(hex.charAt(i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("Invalid hex string: " + hex);
+            }
+            out[i / 2] = (byte) ((hi << 4) | lo);
         }
 
         return out;
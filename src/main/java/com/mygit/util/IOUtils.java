@@ -4,44 +4,16 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.zip.Deflater;
-import java.util.zip.Inflater;
+
+import com.mygit.codec.ZlibCodec;
 
 public class IOUtils {
     public static byte[] zlibCompress(byte[] input) {
-        try {
-            Deflater deflater = new Deflater();
-            deflater.setInput(input);
-            deflater.finish();
-
-            byte[] buffer = new byte[8192];
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-
-            while (!deflater.finished()) {
-                int count = deflater.deflate(buffer);
-                output.write(buffer, 0, count);
-            }
-            return output.toByteArray();
-        } catch (Exception e) {
-            throw new RuntimeException("Compression failed", e);
-        }
+        return ZlibCodec.deflate(input, Deflater.DEFAULT_COMPRESSION);
     }
 
     public static byte[] zlibDecompress(byte[] input) {
-        try {
-            Inflater inflater = new Inflater();
-            inflater.setInput(input);
-
-            byte[] buffer = new byte[8192];
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-
-            while (!inflater.finished()) {
-                int count = inflater.inflate(buffer);
-                output.write(buffer, 0, count);
-            }
-            return output.toByteArray();
-        } catch (Exception e) {
-            throw new RuntimeException("Decompression failed", e);
-        }
+        return ZlibCodec.inflate(input);
     }
 
     public static void writeFile(Path path, byte[] data) {
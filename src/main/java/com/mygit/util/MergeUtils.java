@@ -1,11 +1,10 @@
 package com.mygit.util;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
+import com.mygit.pack.CommitLookup;
+import com.mygit.storage.ObjectId;
 import com.mygit.storage.ObjectStore;
 
 public class MergeUtils {
@@ -42,42 +41,9 @@ public class MergeUtils {
         return null;
     }
 
-    public Map<String, Integer> ancestorsWithDistance(String start) {
-        Map<String, Integer> dist = new HashMap<>();
-        ArrayDeque<String> q = new ArrayDeque<>();
-        dist.put(start, 0);
-        q.add(start);
-
-        while (!q.isEmpty()) {
-            String cur = q.poll();
-            int d = dist.get(cur);
-            List<String> parents = getParents(cur);
-            for (String parent : parents) {
-                if (!dist.containsKey(parent)) {
-                    dist.put(parent, d + 1);
-                    q.add(parent);
-                }
-            }
-        }
-        return dist;
-    }
-
     // LCA :- Least Common Ancestor
     public String findLCA(String a, String b) {
-        Map<String, Integer> da = ancestorsWithDistance(a);
-        Map<String, Integer> db = ancestorsWithDistance(b);
-
-        String best = null;
-        int bestScore = Integer.MAX_VALUE;
-        for (String cand : db.keySet()) {
-            if (da.containsKey(cand)) {
-                int score = da.get(cand) + db.get(cand);
-                if (score < bestScore) {
-                    best = cand;
-                    bestScore = score;
-                }
-            }
-        }
-        return best;
+        ObjectId base = new CommitLookup(store).mergeBase(ObjectId.fromHex(a), ObjectId.fromHex(b));
+        return base == null ? null : base.name();
     }
 }
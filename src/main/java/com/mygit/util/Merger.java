@@ -19,12 +19,17 @@ import java.util.UUID;
 import com.mygit.RefsUtil;
 import com.mygit.command.CheckOutCommand;
 import com.mygit.index.IndexEntry;
+import com.mygit.storage.ObjectId;
 import com.mygit.storage.ObjectStore;
 import com.mygit.storage.TreeReader;
 import com.mygit.storage.TreeWriter;
 import com.mygit.storage.TreeReader.TreeEntry;
 
 public class Merger {
+    // Conflicting blobs above this size get the binary placeholder without
+    // being inflated for a text merge.
+    private static final long TEXT_MERGE_LIMIT = 8L * 1024 * 1024;
+
     private final ObjectStore store;
     private final TreeReader tr;
     private final MergeUtils utils;
@@ -37,30 +42,29 @@ public class Merger {
 
     public static class Pair {
         public final String mode;
-        public final String shaHex;
+        public final ObjectId id;
 
-        public Pair(String mode, String shaHex) {
+        public Pair(String mode, ObjectId id) {
             this.mode = mode;
-            this.shaHex = shaHex;
+            this.id = id;
         }
     }
 
     public Map<String, Pair> buildPathMap(String treeSha) {
         Map<String, Pair> map = new HashMap<>();
-        walkTree(treeSha, "", map);
+        if (treeSha != null)
+            walkTree(ObjectId.fromHex(treeSha), "", map);
         return map;
     }
 
-    private void walkTree(String treeSha, String prefix, Map<String, Pair> map) {
-        if (treeSha == null)
-            return;
-        List<TreeEntry> entries = tr.readTree(treeSha);
+    private void walkTree(ObjectId treeId, String prefix, Map<String, Pair> map) {
+        List<TreeEntry> entries = tr.readTree(treeId);
         for (TreeEntry e : entries) {
             String path = prefix.isEmpty() ? e.name : (prefix + "/" + e.name);
             if (e.isTree()) {
-                walkTree(e.shaHex, path, map);
+                walkTree(e.id, path, map);
             } else {
-                map.put(path, new Pair(e.mode, e.shaHex));
+                map.put(path, new Pair(e.mode, e.id));
             }
         }
     }
@@ -93,9 +97,9 @@ public class Merger {
             Pair ourP = ourMap.get(path);
             Pair theirP = theirMap.get(path);
 
-            String baseSha = baseP == null ? null : baseP.shaHex;
-            String ourSha = ourP == null ? null : ourP.shaHex;
-            String theirSha = theirP == null ? null : theirP.shaHex;
+            ObjectId baseSha = baseP == null ? null : baseP.id;
+            ObjectId ourSha = ourP == null ? null : ourP.id;
+            ObjectId theirSha = theirP == null ? null : theirP.id;
 
             if (Objects.equals(ourSha, theirSha)) {
                 if (ourSha != null)
@@ -115,15 +119,16 @@ public class Merger {
 
             conflicts.add(path);
 
-            byte[] ourContent = readBlobContent(ourSha);
-            byte[] theirContent = readBlobContent(theirSha);
+            boolean tooLarge = isLarge(ourSha) || isLarge(theirSha);
+            byte[] ourContent = tooLarge ? null : readBlobContent(ourSha);
+            byte[] theirContent = tooLarge ? null : readBlobContent(theirSha);
 
             boolean ourBinary = isBinary(ourContent);
             boolean theirBinary = isBinary(theirContent);
 
             byte[] mergedBytes;
 
-            if (ourBinary || theirBinary) {
+            if (tooLarge || ourBinary || theirBinary) {
                 String placeHolder = "<<<<< OURS (binary)\n"
                         + (ourSha == null ? "<deleted>\n" : "Blob: " + ourSha + "\n") + "=====\n"
                         + (theirSha == null ? "<deleted>\n" : "Blob: " + theirSha + "\n") + ">>>>> THEIRS (binary)\n";
@@ -135,7 +140,7 @@ public class Merger {
             String mergedSha = store.writeBlob(mergedBytes);
 
             String mode = ourP != null ? ourP.mode : (theirP != null ? theirP.mode : "100644");
-            result.put(path, new Pair(mode, mergedSha));
+            result.put(path, new Pair(mode, ObjectId.fromHex(mergedSha)));
         }
 
         // Write tree from index is fine, but we need to update the ACTUAL index file 
@@ -146,7 +151,7 @@ public class Merger {
         // 1. Write content to working directory
         for (Map.Entry<String, Pair> e : result.entrySet()) {
              String path = e.getKey();
-             String sha = e.getValue().shaHex;
+             ObjectId sha = e.getValue().id;
              
              // In a real implementation we would only update changed files
              // For now, overwrite to ensure consistency
@@ -190,7 +195,7 @@ public class Merger {
             ie.uid = 0;
             ie.gid = 0;
             ie.fileSize = (int) stat.size;
-            ie.sha1 = HashUtils.hexToBytes(e.getValue().shaHex);
+            ie.sha1 = e.getValue().id.toByteArray();
             ie.flags = (short) (ie.path.length() & 0x0FFF);
             
             entries.add(ie);
@@ -351,10 +356,10 @@ public class Merger {
         }
     }
 
-    private byte[] readBlobContent(String shaHex) {
-        if (shaHex == null)
+    private byte[] readBlobContent(ObjectId id) {
+        if (id == null)
             return new byte[0];
-        byte[] storeBytes = store.readObject(shaHex);
+        byte[] storeBytes = store.readObject(id);
         ObjectStore.ParseObject po = store.parseObject(storeBytes);
         if (!"blob".equals(po.type)) {
             return new byte[0];
@@ -386,6 +391,10 @@ public class Merger {
         }
     }
 
+    private boolean isLarge(ObjectId id) {
+        return id != null && store.readHeader(id).size > TEXT_MERGE_LIMIT;
+    }
+
     private boolean isBinary(byte[] b) {
         if (b == null || b.length == 0)
             return false;
@@ -2,12 +2,26 @@ package com.mygit.util;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 public class ThreadPool {
+    // Daemon threads, so a command that used the pool can still exit normally.
     private static ExecutorService pool = Executors.newFixedThreadPool(
-            Runtime.getRuntime().availableProcessors());
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "mygit-worker");
+                t.setDaemon(true);
+                return t;
+            });
+
+    // For tasks that fork and join subtasks, which would deadlock the fixed
+    // pool once every worker waits on a queued child. Its threads are daemons.
+    private static ForkJoinPool forkJoinPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 
     public static ExecutorService get() {
         return pool;
     }
+
+    public static ForkJoinPool forkJoin() {
+        return forkJoinPool;
+    }
 }